@@ -1,5 +1,9 @@
 package ch.ips.g2.applyalter;
 
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -17,6 +21,20 @@ public abstract class AbstractMigration extends AbstractStatement {
     protected Long step = DEFAULT_STEP;
     protected String placeholder;
 
+    /**
+     * Target duration of one batch in milliseconds; when set, the step is adjusted after every batch.
+     */
+    @XStreamAlias("target-batch-ms")
+    protected Long targetBatchMs;
+    @XStreamAlias("min-step")
+    protected Long minStep;
+    @XStreamAlias("max-step")
+    protected Long maxStep;
+    /**
+     * Store statistics of every batch to applyalter_batch_log.
+     */
+    protected boolean batchlog;
+
     public String getLogid() {
         return logid;
     }
@@ -65,6 +83,114 @@ public abstract class AbstractMigration extends AbstractStatement {
         this.placeholder = placeholder;
     }
 
+    /**
+     * Target duration of one batch (including commit) in milliseconds. When set, the step is not fixed, but
+     * adjusted by {@link AdaptiveStep} after every batch; {@link #getStep()} is just the initial value.
+     * Null or non-positive value means that step is fixed.
+     */
+    public Long getTargetBatchMs() {
+        return targetBatchMs;
+    }
+
+    public void setTargetBatchMs(Long targetBatchMs) {
+        this.targetBatchMs = targetBatchMs;
+    }
+
+    /**
+     * Lower bound of the adaptive step; default is 1/100 of the initial step.
+     */
+    public Long getMinStep() {
+        return minStep;
+    }
+
+    public void setMinStep(Long minStep) {
+        this.minStep = minStep;
+    }
+
+    /**
+     * Upper bound of the adaptive step; default is 100 times the initial step.
+     */
+    public Long getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(Long maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    /**
+     * Store statistics of every batch (bounds, changed rows, execution and commit time) to
+     * applyalter_batch_log, see {@link BatchLog}.
+     */
+    public boolean isBatchlog() {
+        return batchlog;
+    }
+
+    public void setBatchlog(boolean batchlog) {
+        this.batchlog = batchlog;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Create step controller for one execution of this migration: adaptive if {@link #getTargetBatchMs()}
+     * is set, fixed otherwise.
+     *
+     * @return new step controller, never null
+     */
+    protected AdaptiveStep createStepControl() {
+        final long initial = (step == null || step.longValue() < 1) ? DEFAULT_STEP : step.longValue();
+        if (targetBatchMs == null || targetBatchMs.longValue() <= 0) {
+            return AdaptiveStep.fixed(initial);
+        }
+        final long min = minStep != null ? minStep.longValue() : Math.max(1L, initial / 100);
+        final long max = maxStep != null ? maxStep.longValue() : initial * 100;
+        if (min < 1 || max < min)
+            throw new ApplyAlterException("invalid apply script: invalid \"min-step\"/\"max-step\" for " + this);
+        return new AdaptiveStep(initial, targetBatchMs.longValue(), min, max);
+    }
+
+    /**
+     * Start tracking progress of this migration (see {@link ProgressTracker}). Caller must
+     * {@link ProgressTracker#finish(RunContext)} it.
+     *
+     * @param ctx        run context
+     * @param totalUnits total units (IDs of the range, rows of the ID list), negative if unknown
+     * @return tracker, registered to JMX
+     */
+    protected ProgressTracker startProgress(RunContext ctx, long totalUnits) {
+        return ProgressTracker.start(ctx, getClass().getSimpleName() + " " + logid, totalUnits);
+    }
+
+    /**
+     * Create batch log of this migration (see {@link #isBatchlog()}); one per session.
+     */
+    protected BatchLog createBatchLog(DbInstance dbConn, RunContext ctx) {
+        return BatchLog.create(dbConn, ctx, logid, batchlog);
+    }
+
+    /**
+     * Commit the batch and record it to the batch log.
+     *
+     * @param ctx        run context
+     * @param connection connection of the batch
+     * @param batchLog   batch log
+     * @param lower      lower bound of the batch (for the log), might be null
+     * @param upper      upper bound of the batch (for the log), might be null
+     * @param units      processed units
+     * @param rows       changed rows
+     * @param batchStart start of the batch, to compute execution time
+     * @throws SQLException error committing/rollbacking
+     */
+    protected void commitBatch(RunContext ctx, Connection connection, BatchLog batchLog, Object lower, Object upper,
+                               long units, long rows, long batchStart)
+            throws SQLException {
+        final long commitStart = System.currentTimeMillis();
+        batchLog.executed(connection, lower, upper, units, rows, commitStart - batchStart);
+        commitStep(ctx, connection);
+        batchLog.committed(System.currentTimeMillis() - commitStart);
+    }
+
     //-----------------------------------------------------------------------------------------------------------------
     //-----------------------------------------------------------------------------------------------------------------
 
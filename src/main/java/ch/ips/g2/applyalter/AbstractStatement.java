@@ -4,9 +4,11 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 import com.thoughtworks.xstream.annotations.XStreamImplicit;
 
 import java.io.UnsupportedEncodingException;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -32,6 +34,27 @@ public abstract class AbstractStatement implements AlterStatement {
     @XStreamImplicit
     protected Set<Integer> ignoredSqlCodes;
 
+    /**
+     * Throttling of batch statements: maximum rows per second (see {@link Throttle}).
+     */
+    @XStreamAlias("max-rows-per-second")
+    protected Double maxRowsPerSecond;
+    /**
+     * Throttling of batch statements: maximum batches (commits) per second.
+     */
+    @XStreamAlias("max-batches-per-second")
+    protected Double maxBatchesPerSecond;
+    /**
+     * Replication lag backpressure: maximum lag in seconds (see {@link LagProbe}).
+     */
+    @XStreamAlias("max-lag")
+    protected Double maxLag;
+    /**
+     * Custom lag query, executed on replicas; returns lag in seconds.
+     */
+    @XStreamAlias("lag-probe")
+    protected String lagProbe;
+
     public String getStatement() {
         return statement;
     }
@@ -65,6 +88,38 @@ public abstract class AbstractStatement implements AlterStatement {
         this.ignoredSqlCodes = ignoredSqlCodes;
     }
 
+    public Double getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    public void setMaxRowsPerSecond(Double maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    public Double getMaxBatchesPerSecond() {
+        return maxBatchesPerSecond;
+    }
+
+    public void setMaxBatchesPerSecond(Double maxBatchesPerSecond) {
+        this.maxBatchesPerSecond = maxBatchesPerSecond;
+    }
+
+    public Double getMaxLag() {
+        return maxLag;
+    }
+
+    public void setMaxLag(Double maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    public String getLagProbe() {
+        return lagProbe;
+    }
+
+    public void setLagProbe(String lagProbe) {
+        this.lagProbe = lagProbe;
+    }
+
     /* Implementing hashCode+equals is not neccesary and probably incorrect
 
       @Override
@@ -195,4 +250,63 @@ public abstract class AbstractStatement implements AlterStatement {
         }
     }
 
+    /**
+     * Create throttle of this statement and register it to JMX. The throttle is created even when there are no limits:
+     * the statement can be slowed down at runtime. Caller must {@link Throttle#close(RunContext)} it.
+     *
+     * @param dbConn database instance, used by the lag probe
+     * @param ctx    context, used for logging
+     * @return throttle, never null
+     */
+    protected Throttle createThrottle(DbInstance dbConn, RunContext ctx) {
+        //first line of toString() identifies the statement
+        Throttle throttle = new Throttle(toString().split("\n")[0], getMaxRowsPerSecond(), getMaxBatchesPerSecond());
+        if (throttle.getMaxRowsPerSecond() > 0 || throttle.getMaxBatchesPerSecond() > 0) {
+            ctx.report(ReportLevel.STATEMENT_STEP, "throttled to %s rows/s, %s batches/s",
+                    getMaxRowsPerSecond(), getMaxBatchesPerSecond());
+        }
+        if (getMaxLag() != null) {
+            throttle.setLagProbe(LagProbe.create(dbConn, ctx, getLagProbe(), getMaxLag().doubleValue()));
+        }
+        throttle.register(ctx);
+        return throttle;
+    }
+
+    /**
+     * Execute the pending batch.
+     *
+     * @param ctx       run context
+     * @param st        statement with batch
+     * @param firstRow  number of rows before this batch (for error messages)
+     * @return number of changed rows; rows reported as {@link Statement#SUCCESS_NO_INFO} are not counted
+     * @throws SQLException batch failed (SQLSTATE and error code of the cause)
+     */
+    protected int executeBatch(RunContext ctx, PreparedStatement st, int firstRow)
+            throws SQLException {
+        final int[] counts;
+        try {
+            counts = st.executeBatch();
+        } catch (BatchUpdateException e) {
+            //some drivers report the real cause as next exception
+            final SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+            final int[] done = e.getUpdateCounts();
+            //keep SQLSTATE and error code: ignore-sqlstate and ignore-sqlcode must work for batches too
+            throw new SQLException(String.format("batch starting at data row %d failed (%d rows of the batch done): %s",
+                    firstRow + 1, done == null ? 0 : done.length, cause.getMessage()),
+                    cause.getSQLState(), cause.getErrorCode(), e);
+        }
+        int rows = 0;
+        int noInfo = 0;
+        for (int count : counts) {
+            if (count >= 0)
+                rows += count;
+            else if (count == Statement.SUCCESS_NO_INFO)
+                noInfo++;
+        }
+        if (noInfo > 0) {
+            ctx.report(ReportLevel.DETAIL, "  batch: %d rows without update count", noInfo);
+        }
+        return rows;
+    }
+
 }
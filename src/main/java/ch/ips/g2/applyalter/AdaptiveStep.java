@@ -0,0 +1,109 @@
+package ch.ips.g2.applyalter;
+
+/**
+ * Step size of migration batches. Fixed step just returns the same value all the time; adaptive step is
+ * recomputed after every batch so that the next batch takes approximately the target time.
+ * <p/>
+ * The rate is measured in "step units" per millisecond: IDs for {@link MigrationIdRange}, rows for
+ * {@link MigrationIdList}. For ID range, this is not the same as changed rows: empty window is processed very fast
+ * and the step grows, which is exactly what we want in sparse regions. The rate is smoothed by exponential moving
+ * average and the step cannot change more than {@link #MAX_FACTOR} times in one batch, so single slow batch (lock
+ * wait) does not break the whole migration.
+ * <p/>
+ * Computed step is rounded to two significant digits: statements with step embedded in SQL text
+ * (<code>fetch first N rows</code>) are then re-prepared only occasionally.
+ *
+ * @version $Id$
+ */
+public class AdaptiveStep {
+    /**
+     * Weight of the last batch in the smoothed rate.
+     */
+    public static final double SMOOTHING = 0.3;
+    /**
+     * Maximum change of step in one batch (both directions).
+     */
+    public static final double MAX_FACTOR = 2.0;
+
+    private final long targetMs;
+    private final long minStep;
+    private final long maxStep;
+    private long step;
+    /**
+     * Smoothed rate (units per millisecond); negative means "not measured yet".
+     */
+    private double rate = -1;
+
+    /**
+     * Create adaptive step.
+     *
+     * @param initialStep step of the first batch
+     * @param targetMs    target batch duration; zero or negative means fixed step
+     * @param minStep     lower bound of the step
+     * @param maxStep     upper bound of the step
+     */
+    public AdaptiveStep(long initialStep, long targetMs, long minStep, long maxStep) {
+        this.targetMs = targetMs;
+        this.minStep = minStep;
+        this.maxStep = maxStep;
+        this.step = initialStep;
+    }
+
+    /**
+     * Create step that never changes.
+     */
+    public static AdaptiveStep fixed(long step) {
+        return new AdaptiveStep(step, 0, step, step);
+    }
+
+    public boolean isAdaptive() {
+        return targetMs > 0;
+    }
+
+    /**
+     * Step of the next batch.
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /**
+     * Smoothed rate in units per second; negative if unknown.
+     */
+    public double getUnitsPerSecond() {
+        return rate < 0 ? -1 : rate * 1000.0;
+    }
+
+    /**
+     * Record finished batch and compute step of the next one.
+     *
+     * @param units     number of processed units (might be less than the step: last batch)
+     * @param elapsedMs duration of the batch, including commit
+     * @return step of the next batch
+     */
+    public long update(long units, long elapsedMs) {
+        if (!isAdaptive()) {
+            return step;
+        }
+        final double batchRate = units / (double) Math.max(elapsedMs, 1L);
+        rate = rate < 0 ? batchRate : SMOOTHING * batchRate + (1.0 - SMOOTHING) * rate;
+
+        double wanted = rate * targetMs;
+        wanted = Math.min(wanted, step * MAX_FACTOR);
+        wanted = Math.max(wanted, step / MAX_FACTOR);
+        step = Math.max(minStep, Math.min(maxStep, roundStep((long) wanted)));
+        return step;
+    }
+
+    /**
+     * Round to two significant digits (12345 to 12000).
+     */
+    static long roundStep(long value) {
+        long magnitude = 1;
+        while (value / magnitude >= 100) {
+            magnitude *= 10;
+        }
+        return Math.max(1L, Math.round(value / (double) magnitude) * magnitude);
+    }
+
+}
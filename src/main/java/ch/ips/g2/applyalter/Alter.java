@@ -50,10 +50,16 @@ public class Alter {
     @XStreamImplicit(itemFieldName = "datafile")
     public List<String> datafile;
     /**
-     * Data files from {@link #datafile}, but loaded into memory.
+     * Data files from {@link #datafile}, loaded lazily (see {@link DatafileMap}).
      */
     transient Map<String, byte[]> _datafiles;
 
+    /**
+     * Optional preparation of tables for bulk load (and restore after the statements).
+     */
+    @XStreamAlias("bulk-prepare")
+    public BulkPrepare bulkPrepare;
+
     @XStreamImplicit
     public List<AlterStatement> statements = new ArrayList<AlterStatement>();
 
@@ -86,6 +92,10 @@ public class Alter {
             this.statements.add(i);
     }
 
+    public BulkPrepare getBulkPrepare() {
+        return bulkPrepare;
+    }
+
     public List<AlterStatement> getStatements() {
         return statements;
     }
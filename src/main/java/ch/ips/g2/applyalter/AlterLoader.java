@@ -29,10 +29,23 @@ public class AlterLoader {
      * XML validator
      */
     protected final Validator validator;
+    /**
+     * Datafiles shared by all the loaded alterscripts.
+     */
+    protected final DatafileStore datafileStore;
 
     public AlterLoader(XStream xstream, Validator validator) {
+        this(xstream, validator, DatafileStore.fromProperty());
+    }
+
+    public AlterLoader(XStream xstream, Validator validator, DatafileStore datafileStore) {
         this.xstream = xstream;
         this.validator = validator;
+        this.datafileStore = datafileStore;
+    }
+
+    public DatafileStore getDatafileStore() {
+        return datafileStore;
     }
 
     /**
@@ -99,16 +112,22 @@ public class AlterLoader {
             //BaseUtil.closeNoThrow( inputStream, "parseScriptFile" );
         }
 
-        //load data files
+        //data files: just compute hash (streaming, compressed files as stored), they are loaded when needed
         if (alterscript.datafile != null && alterscript.datafile.size() > 0) {
-            alterscript._datafiles = new TreeMap<String, byte[]>();
+            final byte[] buffer = new byte[64 * 1024];
             for (String datafile : alterscript.datafile) {
                 inputStream = null;
                 try {
+                    //the store reads the file once: hash, cache and its own digest
+                    if (datafileStore.update(source, datafile, digest))
+                        continue;
                     inputStream = source.openDataFile(datafile);
+                    if (inputStream == null)
+                        throw new FileNotFoundException(datafile);
                     inputStream = new DigestInputStream(inputStream, digest);
-                    byte[] data = IOUtils.toByteArray(inputStream);
-                    alterscript._datafiles.put(datafile, data);
+                    while (inputStream.read(buffer) >= 0) {
+                        //digest only
+                    }
                 } catch (FileNotFoundException e) {
                     throw new ApplyAlterException("no such datafile: " + datafile + " for " + fileId, e);
                 } catch (IOException e) {
@@ -118,6 +137,7 @@ public class AlterLoader {
 //          BaseUtil.closeNoThrow( inputStream, "parseScriptFile" );
                 }
             }
+            alterscript._datafiles = new DatafileMap(source, alterscript.datafile, datafileStore);
         }
 
         // set filename part
@@ -144,6 +164,26 @@ public class AlterLoader {
         return new String(hexChars);
     }
 
+    /**
+     * Convert hex string (case insensitive) to bytes.
+     *
+     * @throws IllegalArgumentException odd length or invalid character
+     */
+    protected static byte[] hex2bytes(CharSequence hex, int start) {
+        final int len = hex.length() - start;
+        if (len % 2 != 0)
+            throw new IllegalArgumentException("odd length of hex string");
+        byte[] bytes = new byte[len / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(start + 2 * i), 16);
+            int lo = Character.digit(hex.charAt(start + 2 * i + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("invalid character in hex string at " + (start + 2 * i));
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
     /**
      * Initialize hash algorithm.
      *
@@ -291,6 +331,15 @@ public class AlterLoader {
          */
         InputStream openDataFile(String filename)
                 throws IOException;
+
+        /**
+         * Location of the data file, same for all alterscripts of the same directory/archive (used as the key of
+         * {@link DatafileStore}).
+         *
+         * @param filename filename (relative)
+         * @return unique location, null if not known (the file is not cached)
+         */
+        String getDataFileKey(String filename);
     }
 
     /**
@@ -310,8 +359,18 @@ public class AlterLoader {
 
         public InputStream openDataFile(String filename)
                 throws IOException {
-            File dataFile = new File(file.getParentFile(), filename);
-            return new FileInputStream(dataFile);
+            return new FileInputStream(getDataFile(filename));
+        }
+
+        /**
+         * Data file on the filesystem (allows memory mapping, see {@link DatafileMap#map}).
+         */
+        public File getDataFile(String filename) {
+            return new File(file.getParentFile(), filename);
+        }
+
+        public String getDataFileKey(String filename) {
+            return getDataFile(filename).getAbsolutePath();
         }
     }
 
@@ -342,6 +401,14 @@ public class AlterLoader {
                 throw new IOException(e);
             }
         }
+
+        public String getDataFileKey(String filename) {
+            try {
+                return url.toURI().resolve(filename).toString();
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
     }
 
     /**
@@ -385,6 +452,14 @@ public class AlterLoader {
             URI dataEntryPath = getEntryPath().resolve(filename);
             return makeURL(dataEntryPath).openStream();
         }
+
+        public String getDataFileKey(String filename) {
+            try {
+                return makeURL(getEntryPath().resolve(filename)).toString();
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
     }
 
 
@@ -414,6 +489,10 @@ public class AlterLoader {
                 throw new FileNotFoundException("no such file in archive: " + filename + " in " + zip.getName());
             return zip.getInputStream(dataEntry);
         }
+
+        public String getDataFileKey(String filename) {
+            return zip.getName() + "!/" + filename;
+        }
     }
 
     /**
@@ -437,5 +516,10 @@ public class AlterLoader {
                 throws IOException {
             return baseClass.getResourceAsStream(filename);
         }
+
+        public String getDataFileKey(String filename) {
+            final URL url = baseClass.getResource(filename);
+            return (url == null) ? null : url.toString();
+        }
     }
 }
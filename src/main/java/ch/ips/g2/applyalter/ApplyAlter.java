@@ -81,6 +81,9 @@ public class ApplyAlter {
             "applyalter_log_db2.xml", "applyalter_log_pgsql.xml",
             "applyalter_hash_db2.xml", "applyalter_hash_pgsql.xml",
             "applyalter_idindex_db2.xml", "applyalter_idindex_pgsql.xml",
+            "applyalter_batchlog_db2.xml", "applyalter_batchlog_pgsql.xml",
+            "applyalter_csvrows_db2.xml", "applyalter_csvrows_pgsql.xml",
+            "applyalter_bulkrestore_db2.xml", "applyalter_bulkrestore_pgsql.xml",
     };
 
     /**
@@ -192,14 +195,18 @@ public class ApplyAlter {
         return new Class[]{
                 DbConfigFile.class,
                 Alter.class,
+                BulkPrepare.class,
                 SQL.class,
                 CSV.class,
+                BinLoad.class,
+                Export.class,
                 SelectQuery.class,
                 DynamicQuery.class,
                 Comment.class,
                 MigrationProc.class,
                 MigrationIdRange.class,
                 MigrationIdList.class,
+                MigrationKeyset.class,
                 PgInstance.class,
                 OracleInstance.class,
                 Db2Instance.class,
@@ -296,6 +303,7 @@ public class ApplyAlter {
             throws ApplyAlterException {
         AlterLoader ldr = new AlterLoader(xstream, validator);
         List<Alter> a = ldr.loadAlters(alterFiles);
+        runContext.report(ReportLevel.DETAIL, "%s", ldr.getDatafileStore());
         // actually apply them
         apply(a.toArray(new Alter[a.size()]));
     }
@@ -442,11 +450,16 @@ public class ApplyAlter {
                     runContext.report(DETAIL, "Database instance %s %s, schema %s", dbid, d.getUrl(), a.getSchema());
                     d.setSchema(a.getSchema());
                     d.setIsolation(a.getIsolation());
+                    d.setCurrentAlter(a.getId(), isLogTableUsed());
 
                     // do checks
                     if (executeChecks(a, d, c)) {
                         //alter already applied
                         runContext.report(ALTER, "Alter already applied, skipping");
+                        if (a.getBulkPrepare() != null && RunMode.SHARP.equals(getRunMode())) {
+                            //restore failed after the alter has been committed and logged
+                            a.getBulkPrepare().restorePending(d, runContext, a.getId());
+                        }
                         continue;
                     }
 
@@ -456,17 +469,27 @@ public class ApplyAlter {
                         continue;
                     }
                     d.markConnectionUsed(runContext);
-                    // for all alter statements
-                    for (AlterStatement s : a.getStatements()) {
-                        //print to user
-                        runContext.report(ReportLevel.STATEMENT, "%s", s);
-                        if (RunMode.PRINT.equals(getRunMode()))
-                            continue;
-
-                        executeStatement(d, a, s);
+                    final BulkPrepare bulk = RunMode.PRINT.equals(getRunMode()) ? null : a.getBulkPrepare();
+                    final boolean bulkPrepared = bulk != null && bulk.prepare(d, runContext, a.getId(), !aae.isEmpty());
+                    boolean logged = false;
+                    try {
+                        // for all alter statements
+                        for (AlterStatement s : a.getStatements()) {
+                            //print to user
+                            runContext.report(ReportLevel.STATEMENT, "%s", s);
+                            if (RunMode.PRINT.equals(getRunMode()))
+                                continue;
+
+                            executeStatement(d, a, s);
+                        }
+                        //before the restore: bulk-prepared alter is committed together with its log record
+                        long time = System.currentTimeMillis() - start;
+                        savelog(d, dbid, a.getId(), time, a.getHash());
+                        logged = true;
+                    } finally {
+                        if (bulkPrepared)
+                            bulk.restore(d, runContext, a.getId(), logged);
                     }
-                    long time = System.currentTimeMillis() - start;
-                    savelog(d, dbid, a.getId(), time, a.getHash());
 
                 } catch (ApplyAlterException e) {
                     aae.addOrThrow(e);
@@ -528,6 +551,10 @@ public class ApplyAlter {
                     throw new ApplyAlterException(e.getMessage(), e);
                 }
             }
+        } finally {
+            //decompressed LOBs are kept just for one statement
+            if (a._datafiles instanceof DatafileMap)
+                ((DatafileMap) a._datafiles).releaseDecompressed();
         }
     }
 
@@ -0,0 +1,147 @@
+package ch.ips.g2.applyalter;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CSV parser running in its own thread: parsed rows are passed through bounded queue, so parsing overlaps with
+ * database I/O and memory stays bounded. Rows are passed in chunks of {@link #CHUNK_ROWS} to keep the
+ * synchronization cheap. Parser error is rethrown by {@link #readNext()}.
+ * <p/>
+ * Usage: {@link #start()}, {@link #readNext()} until null, always {@link #close()} (in finally clause).
+ *
+ * @version $Id$
+ */
+public class AsyncCsvReader {
+    public static final int CHUNK_ROWS = 256;
+    public static final int QUEUE_CHUNKS = 16;
+
+    private static final String[][] END = new String[0][];
+
+    private final CSVReader parser;
+    private final String name;
+    private final BlockingQueue<String[][]> queue = new ArrayBlockingQueue<String[][]>(QUEUE_CHUNKS);
+    private volatile Throwable error;
+    private volatile boolean closed;
+    private Thread thread;
+
+    private String[][] chunk;
+    private int chunkPos;
+    private boolean finished;
+
+    /**
+     * Create reader, the parser is not started yet.
+     *
+     * @param reader CSV text
+     * @param name   name used in thread name and error messages
+     */
+    public AsyncCsvReader(Reader reader, String name) {
+        this.parser = new CSVReader(reader);
+        this.name = name;
+    }
+
+    public void start() {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                parse();
+            }
+        }, "applyalter-csv-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void parse() {
+        try {
+            String[][] rows = new String[CHUNK_ROWS][];
+            int count = 0;
+            String[] row;
+            while (!closed && (row = parser.readNext()) != null) {
+                rows[count++] = row;
+                if (count == CHUNK_ROWS) {
+                    put(rows);
+                    rows = new String[CHUNK_ROWS][];
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                String[][] last = new String[count][];
+                System.arraycopy(rows, 0, last, 0, count);
+                put(last);
+            }
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            try {
+                put(END);
+            } catch (InterruptedException e) {
+                //closed
+            }
+        }
+    }
+
+    private void put(String[][] rows)
+            throws InterruptedException {
+        //do not block forever when the consumer has gone
+        while (!closed) {
+            if (queue.offer(rows, 100, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /**
+     * Next row.
+     *
+     * @return row, null at the end of file
+     * @throws IOException error reading/parsing the file
+     */
+    public String[] readNext()
+            throws IOException {
+        while (chunk == null || chunkPos >= chunk.length) {
+            if (finished)
+                return null;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplyAlterException("interrupted while reading CSV " + name, e);
+            }
+            chunkPos = 0;
+            if (chunk == END) {
+                finished = true;
+                chunk = null;
+                if (error instanceof IOException)
+                    throw (IOException) error;
+                if (error != null)
+                    throw new ApplyAlterException("error parsing CSV " + name, error);
+                return null;
+            }
+        }
+        return chunk[chunkPos++];
+    }
+
+    /**
+     * Stop the parser and close the input.
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            parser.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Per-batch statistics of a migration, stored to table <code>applyalter_batch_log</code> (created by internal
+ * script, see {@link DbInstance#getBatchLogTable()}).
+ * <p/>
+ * Record is written in the same transaction as the batch, so it costs just one insert; however, commit time of the
+ * batch is known only after the commit: therefore every record is written in the transaction of the <i>next</i>
+ * batch and the last one is written (and committed, unless the migration failed) by {@link #finish}. Not thread
+ * safe: every session needs its own instance.
+ *
+ * @version $Id$
+ */
+public class BatchLog {
+    /**
+     * Maximum length of the bound columns.
+     */
+    public static final int MAX_BOUND_LENGTH = 200;
+
+    private static final BatchLog DISABLED = new BatchLog(null, null, null);
+
+    private final DbInstance db;
+    private final String alterId;
+    private final String logid;
+    private PreparedStatement insert;
+    private int batch;
+
+    //pending record: batch executed, not yet written
+    private boolean pending;
+    private String lower;
+    private String upper;
+    private long units;
+    private long rows;
+    private long execMs;
+    private long commitMs;
+
+    private BatchLog(DbInstance db, String alterId, String logid) {
+        this.db = db;
+        this.alterId = alterId;
+        this.logid = logid;
+    }
+
+    /**
+     * Create batch log for the statement.
+     *
+     * @param db      database instance
+     * @param ctx     run context
+     * @param logid   statement id
+     * @param enabled is the log required by the alterscript?
+     * @return batch log; when not enabled or log tables are not used, it does nothing
+     */
+    public static BatchLog create(DbInstance db, RunContext ctx, String logid, boolean enabled) {
+        if (!enabled)
+            return DISABLED;
+        if (!db.isLogTableUsed()) {
+            ctx.report(ReportLevel.STATEMENT_STEP, "log table disabled, batch statistics are not stored");
+            return DISABLED;
+        }
+        return new BatchLog(db, db.getCurrentAlterId(), logid);
+    }
+
+    public boolean isEnabled() {
+        return db != null;
+    }
+
+    /**
+     * Batch has been executed and it is going to be committed: the record of the previous batch is written.
+     *
+     * @param con    connection of the batch
+     * @param lower  lower bound of the batch, might be null
+     * @param upper  upper bound of the batch, might be null
+     * @param units  processed units (IDs, keys)
+     * @param rows   changed rows
+     * @param execMs execution time of the batch, without the commit
+     * @throws SQLException error writing the previous record
+     */
+    public void executed(Connection con, Object lower, Object upper, long units, long rows, long execMs)
+            throws SQLException {
+        if (!isEnabled())
+            return;
+        writePending(con);
+        this.pending = true;
+        this.batch++;
+        this.lower = bound(lower);
+        this.upper = bound(upper);
+        this.units = units;
+        this.rows = rows;
+        this.execMs = execMs;
+        this.commitMs = -1;
+    }
+
+    /**
+     * The batch has been committed.
+     */
+    public void committed(long commitMs) {
+        this.commitMs = commitMs;
+    }
+
+    /**
+     * Write the last record and commit it; close the statement. Must be called even on failure (in finally clause):
+     * then the record is not written, because the commit would include the partial work of the failed batch.
+     *
+     * @param statement the migration, used to commit
+     * @param ctx       run context
+     * @param con       connection
+     * @param success   has the migration succeeded?
+     */
+    public void finish(AbstractStatement statement, RunContext ctx, Connection con, boolean success) {
+        if (!isEnabled())
+            return;
+        try {
+            if (pending && commitMs >= 0) {
+                if (success) {
+                    writePending(con);
+                    statement.commitStep(ctx, con);
+                } else {
+                    ctx.report(ReportLevel.DETAIL, "migration failed, record of batch %d not written to %s", batch,
+                            db.getBatchLogTable());
+                }
+            }
+        } catch (SQLException e) {
+            ctx.report(ReportLevel.ERROR, "failed to write %s: %s", db.getBatchLogTable(), e.getMessage());
+        } finally {
+            DbUtils.close(insert);
+            insert = null;
+            pending = false;
+        }
+    }
+
+    private void writePending(Connection con)
+            throws SQLException {
+        if (!pending)
+            return;
+        if (insert == null) {
+            insert = con.prepareStatement("insert into " + db.getBatchLogTable()
+                    + " (id, logid, batch, lower_bound, upper_bound, units, rows_changed, exec_ms, commit_ms)"
+                    + " values (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+        int idx = 1;
+        insert.setString(idx++, alterId);
+        insert.setString(idx++, logid);
+        insert.setInt(idx++, batch);
+        insert.setString(idx++, lower);
+        insert.setString(idx++, upper);
+        insert.setLong(idx++, units);
+        insert.setLong(idx++, rows);
+        insert.setLong(idx++, execMs);
+        if (commitMs >= 0)
+            insert.setLong(idx, commitMs);
+        else
+            insert.setNull(idx, Types.BIGINT);
+        insert.executeUpdate();
+        pending = false;
+    }
+
+    private static String bound(Object value) {
+        if (value == null)
+            return null;
+        String s = value.toString();
+        return s.length() > MAX_BOUND_LENGTH ? s.substring(0, MAX_BOUND_LENGTH) : s;
+    }
+
+}
@@ -0,0 +1,134 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Load of {@link BinaryDatafile}: like {@link CSV} in statement mode, the statement contains one question mark for
+ * every column and is executed for every row. The values are bound directly from the (memory-mapped) file by their
+ * stored types, so there is no parsing and no parameter metadata lookup.
+ *
+ * @version $Id$
+ */
+@XStreamAlias("binload")
+public class BinLoad extends AbstractStatement {
+    protected String file;
+    protected Integer step = null;
+    protected Integer batch = null;
+
+    public BinLoad() {
+        super();
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Commit after this many rows; everything in one transaction if not set.
+     */
+    public Integer getStep() {
+        return step;
+    }
+
+    public void setStep(Integer step) {
+        this.step = step;
+    }
+
+    /**
+     * Rows are sent by JDBC batches of this size; the statement must not return a result set.
+     */
+    public Integer getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Integer batch) {
+        this.batch = batch;
+    }
+
+    public String getSqlStatement() {
+        return getStatement();
+    }
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        final ByteBuffer data;
+        try {
+            data = DatafileMap.map(datafiles, getFile());
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading binary datafile " + getFile(), e);
+        }
+        if (data == null) {
+            throw new ApplyAlterException(String.format("missing top-level element: <datafile>%s</datafile>", getFile()));
+        }
+        final BinaryDatafile.Reader rdr = new BinaryDatafile.Reader(data, getFile());
+        final int numParams = rdr.getColumnNames().length;
+        ctx.report(ReportLevel.STATEMENT_STEP, "binary columns:%s, types:%s%n", Arrays.asList(rdr.getColumnNames()),
+                Arrays.asList(rdr.getTypes()));
+
+        final Connection connection = dbConn.getConnection(ctx);
+        PreparedStatement st = null;
+        Throttle throttle = null;
+        try {
+            //LOBs must be after the columns, like in CSV
+            st = prepareStatement(connection, getSqlStatement().trim(), datafiles, numParams);
+
+            int rows = 0;
+            int execCnt = 0;
+            final int stepSize = (step == null) ? 0 : step.intValue();
+            final int batchSize = (batch == null) ? 0 : batch.intValue();
+            int batched = 0;
+            if (batchSize > 0) {
+                ctx.report(ReportLevel.STATEMENT_STEP, "batch mode, %d rows per batch", batchSize);
+            }
+            if (stepSize > 0) {
+                throttle = createThrottle(dbConn, ctx);
+            }
+
+            while (rdr.hasNext()) {
+                rdr.bindRow(st);
+                if (batchSize > 0) {
+                    st.addBatch();
+                    batched++;
+                } else if (!st.execute()) {
+                    rows += st.getUpdateCount();
+                }
+                execCnt++;
+
+                if (batched >= batchSize && batched > 0) {
+                    rows += executeBatch(ctx, st, execCnt - batched);
+                    batched = 0;
+                }
+                if (stepSize > 0 && (execCnt % stepSize) == 0) {
+                    if (batched > 0) {
+                        rows += executeBatch(ctx, st, execCnt - batched);
+                        batched = 0;
+                    }
+                    commitStep(ctx, connection);
+                    throttle.acquire(ctx, stepSize);
+                }
+            }
+            if (batched > 0) {
+                rows += executeBatch(ctx, st, execCnt - batched);
+            }
+
+            ctx.report(ReportLevel.STATEMENT_STEP, "statement executed %d times, changed rows: %d%n", execCnt, rows);
+        } finally {
+            DbUtils.close(st);
+            if (throttle != null)
+                throttle.close(ctx);
+        }
+    }
+
+}
@@ -0,0 +1,675 @@
+package ch.ips.g2.applyalter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Typed binary datafile, loaded by {@link BinLoad} without any text parsing. Created from CSV by
+ * {@link CsvToBinary} or from query result by {@link Export}.
+ * <p/>
+ * Format (big endian):
+ * <ul>
+ * <li>header: magic <code>AABD</code>, version byte, column count (short), then for every column its
+ * {@link Type} code (byte) and name (short length + UTF-8)</li>
+ * <li>rows until the end of file: null bitmap (one bit per column, lowest bit of the first byte is the first
+ * column), then the non-null values in column order</li>
+ * <li>values: INT, BIGINT, SMALLINT, DOUBLE, REAL as Java primitives, BOOLEAN as one byte, DECIMAL as scale (int) and
+ * unscaled value (int length + two's complement bytes), VARCHAR as int length + UTF-8, BINARY as int length + bytes,
+ * DATE, TIME and TIMESTAMP as int length + JDBC escape text (independent of time zone)</li>
+ * </ul>
+ * Values use the same semantics as {@link CsvConverter}: empty CSV cell is NULL, except VARCHAR.
+ *
+ * @version $Id$
+ */
+public class BinaryDatafile {
+    public static final byte[] MAGIC = {'A', 'A', 'B', 'D'};
+    public static final byte VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Column types; the code is stored in the header and must never change.
+     */
+    public enum Type {
+        INT(1, Types.INTEGER) {
+            Object parse(String value) {
+                return Integer.valueOf(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeInt(((Number) value).intValue());
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.getInt();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setInt(idx, rdr.buffer.getInt());
+            }
+        },
+        BIGINT(2, Types.BIGINT) {
+            Object parse(String value) {
+                return Long.valueOf(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeLong(((Number) value).longValue());
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.getLong();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setLong(idx, rdr.buffer.getLong());
+            }
+        },
+        SMALLINT(3, Types.SMALLINT) {
+            Object parse(String value) {
+                return Short.valueOf(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeShort(((Number) value).shortValue());
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.getShort();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setShort(idx, rdr.buffer.getShort());
+            }
+        },
+        DOUBLE(4, Types.DOUBLE) {
+            Object parse(String value) {
+                return Double.valueOf(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeDouble(((Number) value).doubleValue());
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.getDouble();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setDouble(idx, rdr.buffer.getDouble());
+            }
+        },
+        REAL(5, Types.REAL) {
+            Object parse(String value) {
+                return Float.valueOf(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeFloat(((Number) value).floatValue());
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.getFloat();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setFloat(idx, rdr.buffer.getFloat());
+            }
+        },
+        BOOLEAN(6, Types.BOOLEAN) {
+            Object parse(String value) {
+                return CsvConverter.parseBoolean(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                out.writeByte(((Boolean) value) ? 1 : 0);
+            }
+
+            Object read(Reader rdr) {
+                return rdr.buffer.get() != 0;
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setBoolean(idx, rdr.buffer.get() != 0);
+            }
+        },
+        DECIMAL(7, Types.DECIMAL) {
+            Object parse(String value) {
+                return new BigDecimal(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                final BigDecimal d = (BigDecimal) value;
+                out.writeInt(d.scale());
+                writeBytes(out, d.unscaledValue().toByteArray());
+            }
+
+            Object read(Reader rdr) {
+                final int scale = rdr.buffer.getInt();
+                return new BigDecimal(new BigInteger(rdr.readBytes()), scale);
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setBigDecimal(idx, (BigDecimal) read(rdr));
+            }
+        },
+        VARCHAR(8, Types.VARCHAR) {
+            @Override
+            public boolean isEmptyNull() {
+                return false;
+            }
+
+            Object parse(String value) {
+                return value;
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                writeBytes(out, ((String) value).getBytes(UTF8));
+            }
+
+            Object read(Reader rdr) {
+                return rdr.readString();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setString(idx, rdr.readString());
+            }
+        },
+        BINARY(9, Types.VARBINARY) {
+            Object parse(String value) {
+                return CsvConverter.parseHex(value);
+            }
+
+            void write(DataOutputStream out, Object value)
+                    throws IOException {
+                writeBytes(out, (byte[]) value);
+            }
+
+            Object read(Reader rdr) {
+                return rdr.readBytes();
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setBytes(idx, rdr.readBytes());
+            }
+        },
+        DATE(10, Types.DATE) {
+            Object parse(String value) {
+                return Date.valueOf(value);
+            }
+
+            Object read(Reader rdr) {
+                return Date.valueOf(rdr.readString());
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setDate(idx, Date.valueOf(rdr.readString()));
+            }
+        },
+        TIME(11, Types.TIME) {
+            Object parse(String value) {
+                return Time.valueOf(value);
+            }
+
+            Object read(Reader rdr) {
+                return Time.valueOf(rdr.readString());
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setTime(idx, Time.valueOf(rdr.readString()));
+            }
+        },
+        TIMESTAMP(12, Types.TIMESTAMP) {
+            Object parse(String value) {
+                return CsvConverter.parseTimestamp(value);
+            }
+
+            Object read(Reader rdr) {
+                return Timestamp.valueOf(rdr.readString());
+            }
+
+            void bind(Reader rdr, PreparedStatement st, int idx)
+                    throws SQLException {
+                st.setTimestamp(idx, Timestamp.valueOf(rdr.readString()));
+            }
+        };
+
+        private final byte code;
+        private final int sqlType;
+
+        Type(int code, int sqlType) {
+            this.code = (byte) code;
+            this.sqlType = sqlType;
+        }
+
+        /**
+         * JDBC type, used for NULL.
+         */
+        public int getSqlType() {
+            return sqlType;
+        }
+
+        /**
+         * Empty CSV cell is NULL; true for all types except VARCHAR.
+         */
+        public boolean isEmptyNull() {
+            return true;
+        }
+
+        /**
+         * Parse non-empty CSV cell.
+         *
+         * @throws IllegalArgumentException invalid value (including {@link NumberFormatException})
+         */
+        abstract Object parse(String value);
+
+        /**
+         * Write value returned by {@link #parse}; temporal types are written as their JDBC escape text.
+         */
+        void write(DataOutputStream out, Object value)
+                throws IOException {
+            writeBytes(out, value.toString().getBytes(UTF8));
+        }
+
+        abstract Object read(Reader rdr);
+
+        abstract void bind(Reader rdr, PreparedStatement st, int idx)
+                throws SQLException;
+
+        /**
+         * Type by name (case insensitive).
+         *
+         * @throws ApplyAlterException unknown type
+         */
+        public static Type forName(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ApplyAlterException("unknown binary datafile type %s, supported: %s", e, name,
+                        Arrays.toString(values()));
+            }
+        }
+
+        /**
+         * Type for values of JDBC type (see {@link CsvConverter#forType(int)}); PostgreSQL specific types
+         * ({@link Types#OTHER}) are stored as text.
+         *
+         * @return type, null if not supported
+         */
+        public static Type forSqlType(int sqlType) {
+            switch (sqlType) {
+                case Types.VARCHAR:
+                case Types.CHAR:
+                case Types.LONGVARCHAR:
+                case Types.CLOB:
+                case Types.NVARCHAR:
+                case Types.NCHAR:
+                case Types.LONGNVARCHAR:
+                case Types.NCLOB:
+                case Types.OTHER:
+                    return VARCHAR;
+                case Types.INTEGER:
+                    return INT;
+                case Types.BIGINT:
+                    return BIGINT;
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    return SMALLINT;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    return DECIMAL;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                    return DOUBLE;
+                case Types.REAL:
+                    return REAL;
+                case Types.BOOLEAN:
+                case Types.BIT:
+                    return BOOLEAN;
+                case Types.DATE:
+                    return DATE;
+                case Types.TIME:
+                    return TIME;
+                case Types.TIMESTAMP:
+                    return TIMESTAMP;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    return BINARY;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Value of the result set column, as {@link #parse} would return it.
+         *
+         * @return value, null for NULL
+         */
+        public Object fetch(ResultSet rs, int idx)
+                throws SQLException {
+            final Object value;
+            switch (this) {
+                case INT:
+                    value = rs.getInt(idx);
+                    break;
+                case BIGINT:
+                    value = rs.getLong(idx);
+                    break;
+                case SMALLINT:
+                    value = rs.getShort(idx);
+                    break;
+                case DOUBLE:
+                    value = rs.getDouble(idx);
+                    break;
+                case REAL:
+                    value = rs.getFloat(idx);
+                    break;
+                case BOOLEAN:
+                    value = rs.getBoolean(idx);
+                    break;
+                case DECIMAL:
+                    value = rs.getBigDecimal(idx);
+                    break;
+                case BINARY:
+                    value = rs.getBytes(idx);
+                    break;
+                case DATE:
+                    value = rs.getDate(idx);
+                    break;
+                case TIME:
+                    value = rs.getTime(idx);
+                    break;
+                case TIMESTAMP:
+                    value = rs.getTimestamp(idx);
+                    break;
+                default:
+                    value = rs.getString(idx);
+            }
+            return rs.wasNull() ? null : value;
+        }
+
+        /**
+         * CSV text of value returned by {@link #parse} or {@link #fetch}, accepted by {@link #parse}.
+         */
+        public String format(Object value) {
+            switch (this) {
+                case DECIMAL:
+                    return ((BigDecimal) value).toPlainString();
+                case BINARY:
+                    return AlterLoader.bytes2hex((byte[]) value);
+                default:
+                    return value.toString();
+            }
+        }
+
+        static Type forCode(byte code) {
+            for (Type t : values()) {
+                if (t.code == code)
+                    return t;
+            }
+            return null;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the datafile: header in the constructor, then {@link #writeRow} for every row. Not thread safe.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final Type[] types;
+        private final byte[] nulls;
+        private final ByteArrayOutputStream rowBytes = new ByteArrayOutputStream(1024);
+        private final DataOutputStream row = new DataOutputStream(rowBytes);
+        private long rows;
+
+        /**
+         * Write the header.
+         *
+         * @param out   output, closed by {@link #close()}
+         * @param names column names
+         * @param types column types
+         * @throws IOException write error
+         */
+        public Writer(OutputStream out, String[] names, Type[] types)
+                throws IOException {
+            if (names.length != types.length || names.length > Short.MAX_VALUE)
+                throw new IllegalArgumentException("invalid columns: " + names.length + " names, "
+                        + types.length + " types");
+            this.out = new DataOutputStream(out);
+            this.types = types.clone();
+            this.nulls = new byte[(types.length + 7) / 8];
+
+            this.out.write(MAGIC);
+            this.out.writeByte(VERSION);
+            this.out.writeShort(types.length);
+            for (int i = 0; i < types.length; i++) {
+                this.out.writeByte(types[i].code);
+                final byte[] name = names[i].getBytes(UTF8);
+                this.out.writeShort(name.length);
+                this.out.write(name);
+            }
+        }
+
+        /**
+         * Write one row.
+         *
+         * @param values values of the types returned by {@link Type#parse}, null for NULL
+         * @throws IOException write error
+         */
+        public void writeRow(Object[] values)
+                throws IOException {
+            Arrays.fill(nulls, (byte) 0);
+            rowBytes.reset();
+            for (int i = 0; i < types.length; i++) {
+                if (values[i] == null) {
+                    nulls[i >> 3] |= 1 << (i & 7);
+                } else {
+                    types[i].write(row, values[i]);
+                }
+            }
+            out.write(nulls);
+            rowBytes.writeTo(out);
+            rows++;
+        }
+
+        /**
+         * Number of rows written.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public void close()
+                throws IOException {
+            out.close();
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Reads the datafile from buffer (usually memory-mapped file, see {@link DatafileMap#map}): header in
+     * the constructor, then {@link #bindRow} (or {@link #readRow}) while {@link #hasNext()}. Not thread safe.
+     */
+    public static class Reader {
+        private final ByteBuffer buffer;
+        private final String name;
+        private final String[] names;
+        private final Type[] types;
+        private final byte[] nulls;
+        private byte[] scratch = new byte[256];
+        private long rows;
+
+        /**
+         * Read the header.
+         *
+         * @param data datafile content, from the current position
+         * @param name datafile name (for error messages)
+         * @throws ApplyAlterException not a binary datafile
+         */
+        public Reader(ByteBuffer data, String name) {
+            this.buffer = data;
+            this.name = name;
+            try {
+                final byte[] magic = new byte[MAGIC.length];
+                buffer.get(magic);
+                if (!Arrays.equals(magic, MAGIC))
+                    throw new ApplyAlterException("not a binary datafile: " + name);
+                final byte version = buffer.get();
+                if (version != VERSION)
+                    throw new ApplyAlterException("unsupported version %d of binary datafile %s", version, name);
+                final int count = buffer.getShort();
+                names = new String[count];
+                types = new Type[count];
+                for (int i = 0; i < count; i++) {
+                    final byte code = buffer.get();
+                    types[i] = Type.forCode(code);
+                    if (types[i] == null)
+                        throw new ApplyAlterException("unknown column type %d in binary datafile %s", code, name);
+                    final byte[] colName = new byte[buffer.getShort()];
+                    buffer.get(colName);
+                    names[i] = new String(colName, UTF8);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new ApplyAlterException("truncated header of binary datafile " + name, e);
+            }
+            nulls = new byte[(types.length + 7) / 8];
+        }
+
+        public String[] getColumnNames() {
+            return names;
+        }
+
+        public Type[] getTypes() {
+            return types;
+        }
+
+        /**
+         * Number of rows read so far.
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public boolean hasNext() {
+            return buffer.hasRemaining();
+        }
+
+        /**
+         * Read the next row to parameters 1..n of the statement.
+         *
+         * @throws SQLException        error setting the parameter
+         * @throws ApplyAlterException truncated file
+         */
+        public void bindRow(PreparedStatement st)
+                throws SQLException {
+            try {
+                buffer.get(nulls);
+                for (int i = 0; i < types.length; i++) {
+                    if ((nulls[i >> 3] & (1 << (i & 7))) != 0) {
+                        st.setNull(i + 1, types[i].sqlType);
+                    } else {
+                        types[i].bind(this, st, i + 1);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw truncated(e);
+            }
+            rows++;
+        }
+
+        /**
+         * Read the next row as objects (null for NULL).
+         *
+         * @throws ApplyAlterException truncated file
+         */
+        public Object[] readRow() {
+            final Object[] values = new Object[types.length];
+            try {
+                buffer.get(nulls);
+                for (int i = 0; i < types.length; i++) {
+                    if ((nulls[i >> 3] & (1 << (i & 7))) == 0) {
+                        values[i] = types[i].read(this);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw truncated(e);
+            }
+            rows++;
+            return values;
+        }
+
+        private ApplyAlterException truncated(BufferUnderflowException e) {
+            return new ApplyAlterException("truncated binary datafile %s in data row %d", e, name, rows + 1);
+        }
+
+        byte[] readBytes() {
+            final byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        String readString() {
+            final int length = buffer.getInt();
+            if (buffer.hasArray()) {
+                final int pos = buffer.position();
+                if (length > buffer.remaining())
+                    throw new BufferUnderflowException();
+                buffer.position(pos + length);
+                return new String(buffer.array(), buffer.arrayOffset() + pos, length, UTF8);
+            }
+            //mapped file: decode through reused array
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, 2 * scratch.length)];
+            }
+            buffer.get(scratch, 0, length);
+            return new String(scratch, 0, length, UTF8);
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Preparation of tables for bulk load, declared by the alterscript: before the statements, listed secondary indexes
+ * are dropped, foreign keys are switched off and tables are made unlogged (where the database supports it); after
+ * the statements, everything is restored (indexes are rebuilt in parallel sessions, foreign keys are validated).
+ * The SQL of the changes is made by the database instance, see
+ * {@link DbInstance#makeIndexRebuild(Connection, String, String)},
+ * {@link DbInstance#makeForeignKeyBypass(Connection, String, String)} and {@link DbInstance#makeUnlogged(String)}.
+ * <p/>
+ * The preparation is committed immediately. Restore statements are stored in table
+ * <code>applyalter_bulk_restore</code> (see {@link DbInstance#getBulkRestoreTable()}) in the same transaction, so when
+ * the run fails (or is killed), the next run of the same alter restores the original state first. Each restore
+ * statement is committed separately and removed from the table. Before the restore, the work of the statements
+ * is committed together with the log record of the alter (or rolled back on failure): index rebuild in other
+ * sessions would wait for its locks. Restore failing after that commit is repeated by the next run, even though
+ * the alter is already applied.
+ * <p/>
+ * Consequently, the alter is committed on its database instance on its own, not together with the other instances
+ * (as alters without bulk-prepare are). Preparation is refused when an earlier alter of the run failed (with
+ * ignored failures): its work is pending to be rolled back, so this alter must not commit.
+ * <p/>
+ * Used only in {@link RunMode#SHARP}: preparation cannot be rolled back.
+ *
+ * @version $Id$
+ */
+@XStreamAlias("bulk-prepare")
+public class BulkPrepare {
+    /**
+     * Restore statement that can run in parallel session (index rebuild).
+     */
+    public static final int PHASE_PARALLEL = 1;
+    /**
+     * Restore statement executed in the main connection, after the parallel ones.
+     */
+    public static final int PHASE_SERIAL = 2;
+
+    /**
+     * Number of parallel sessions for index rebuild; default is 1 (main connection).
+     */
+    @XStreamAsAttribute
+    public Integer parallel;
+    @XStreamImplicit(itemFieldName = "index")
+    public List<Item> index;
+    @XStreamImplicit(itemFieldName = "foreign-key")
+    public List<Item> foreignKey;
+    @XStreamImplicit(itemFieldName = "unlogged")
+    public List<Item> unlogged;
+
+    /**
+     * Restore statements of the current run; null if not prepared.
+     */
+    private transient List<Restore> pending;
+
+    /**
+     * Database object: index (name), foreign key (name and table) or table (table).
+     */
+    public static class Item {
+        @XStreamAsAttribute
+        public String name;
+        @XStreamAsAttribute
+        public String table;
+
+        @Override
+        public String toString() {
+            return table == null ? name : (name == null ? table : table + "." + name);
+        }
+    }
+
+    /**
+     * Change of one object: statements applied by the preparation and statements restoring the original state.
+     */
+    public static class Change {
+        private final int phase;
+        private final List<String> apply = new ArrayList<String>();
+        private final List<String> restore = new ArrayList<String>();
+
+        /**
+         * @param phase {@link #PHASE_PARALLEL} or {@link #PHASE_SERIAL}: how the restore statements are executed
+         */
+        public Change(int phase) {
+            this.phase = phase;
+        }
+
+        public Change apply(String sql) {
+            apply.add(sql);
+            return this;
+        }
+
+        public Change restore(String sql) {
+            restore.add(sql);
+            return this;
+        }
+    }
+
+    /**
+     * Restore statement, as stored in the table.
+     */
+    protected static class Restore {
+        final int seq;
+        final int phase;
+        final String sql;
+
+        Restore(int seq, int phase, String sql) {
+            this.seq = seq;
+            this.phase = phase;
+            this.sql = sql;
+        }
+
+        @Override
+        public String toString() {
+            return sql;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Prepare the tables; restore statements left by a failed run of the alter are executed first.
+     *
+     * @param db      database instance
+     * @param ctx     run context
+     * @param alterId alter identifier
+     * @param failed  has an earlier alter of the run failed? Its work is to be rolled back, so the preparation
+     *                (which commits) is refused.
+     * @return true if prepared, false if skipped (run mode)
+     * @throws ApplyAlterException preparation failed or refused (what has been committed is restored by the next run)
+     */
+    public boolean prepare(DbInstance db, RunContext ctx, String alterId, boolean failed)
+            throws ApplyAlterException {
+        if (ctx.getRunMode() != RunMode.SHARP) {
+            ctx.report(ReportLevel.STATEMENT_STEP, "bulk-prepare skipped in run mode %s", ctx.getRunMode());
+            return false;
+        }
+        if (failed) {
+            throw new ApplyAlterException("bulk-prepare refused: an earlier alterscript failed and the run is to be "
+                    + "rolled back, but bulk-prepare commits the alter");
+        }
+        restorePending(db, ctx, alterId);
+
+        final Connection con = db.getConnection(ctx);
+        final boolean tracked = db.isLogTableUsed();
+        if (!tracked) {
+            ctx.report(ReportLevel.ERROR, "log table disabled: bulk-prepare is not tracked, failed run is not "
+                    + "restored by the next run");
+        }
+        final List<Restore> restores = new ArrayList<Restore>();
+        PreparedStatement insert = null;
+        try {
+            final List<Change> changes = makeChanges(db, ctx, con);
+            if (tracked) {
+                insert = con.prepareStatement("insert into " + db.getBulkRestoreTable()
+                        + " (id, seq, phase, restore_sql) values (?, ?, ?, ?)");
+            }
+            for (Change change : changes) {
+                //record first: Oracle DDL commits immediately
+                for (String sql : change.restore) {
+                    final Restore restore = new Restore(restores.size() + 1, change.phase, sql);
+                    restores.add(restore);
+                    if (insert != null) {
+                        insert.setString(1, alterId);
+                        insert.setInt(2, restore.seq);
+                        insert.setInt(3, restore.phase);
+                        insert.setString(4, restore.sql);
+                        insert.executeUpdate();
+                    }
+                }
+                for (String sql : change.apply) {
+                    ctx.report(ReportLevel.STATEMENT_STEP, "bulk-prepare: %s", sql);
+                    DbUtils.executeUpdate(con, sql);
+                }
+            }
+            con.commit();
+        } catch (SQLException e) {
+            DbUtils.close(insert);
+            insert = null;
+            try {
+                con.rollback();
+            } catch (SQLException e1) {
+                //ignore, the original error is more important
+            }
+            //whatever survived the rollback is in the table
+            restorePending(db, ctx, alterId);
+            throw new ApplyAlterException("bulk-prepare failed: %s", e, e.getMessage());
+        } finally {
+            DbUtils.close(insert);
+        }
+        this.pending = restores;
+        ctx.report(ReportLevel.STATEMENT_STEP, "bulk-prepare done, %d restore statements", restores.size());
+        return true;
+    }
+
+    private List<Change> makeChanges(DbInstance db, RunContext ctx, Connection con)
+            throws SQLException {
+        final List<Change> changes = new ArrayList<Change>();
+        for (Item item : nonNull(index)) {
+            changes.add(db.makeIndexRebuild(con, db.getSchema(), item.name));
+        }
+        for (Item item : nonNull(foreignKey)) {
+            changes.add(db.makeForeignKeyBypass(con, item.table, item.name));
+        }
+        for (Item item : nonNull(unlogged)) {
+            final Change change = db.makeUnlogged(item.table);
+            if (change == null) {
+                ctx.report(ReportLevel.STATEMENT_STEP, "bulk-prepare: unlogged table is not supported by %s, %s is "
+                        + "logged", db.getEngine(), item.table);
+            } else {
+                changes.add(change);
+            }
+        }
+        return changes;
+    }
+
+    private static List<Item> nonNull(List<Item> items) {
+        return items == null ? Collections.<Item>emptyList() : items;
+    }
+
+    /**
+     * Restore the original state after the statements.
+     *
+     * @param db      database instance
+     * @param ctx     run context
+     * @param alterId alter identifier
+     * @param success did the statements succeed (and has the alter been logged)? Their work is committed if so,
+     *                rolled back otherwise.
+     * @throws ApplyAlterException restore failed (only on success: otherwise, the error is just reported
+     *                             so that the original one is not hidden)
+     */
+    public void restore(DbInstance db, RunContext ctx, String alterId, boolean success)
+            throws ApplyAlterException {
+        final List<Restore> restores = pending;
+        if (restores == null)
+            return;
+        pending = null;
+        final Connection con = db.getConnection(ctx);
+        try {
+            if (success) {
+                con.commit();
+            } else {
+                con.rollback();
+            }
+            runRestores(db, ctx, alterId, restores);
+        } catch (SQLException e) {
+            handleRestoreError(ctx, success, new ApplyAlterException("bulk-prepare restore failed: %s", e,
+                    e.getMessage()));
+        } catch (ApplyAlterException e) {
+            handleRestoreError(ctx, success, e);
+        }
+    }
+
+    private static void handleRestoreError(RunContext ctx, boolean success, ApplyAlterException e) {
+        if (success)
+            throw e;
+        ctx.report(ReportLevel.ERROR, "%s", e.getMessage());
+    }
+
+    /**
+     * Execute restore statements left by a failed run.
+     */
+    protected void restorePending(DbInstance db, RunContext ctx, String alterId)
+            throws ApplyAlterException {
+        if (!db.isLogTableUsed())
+            return;
+        final Connection con = db.getConnection(ctx);
+        final List<Restore> restores = new ArrayList<Restore>();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select seq, phase, restore_sql from " + db.getBulkRestoreTable()
+                    + " where id = ? order by seq");
+            st.setString(1, alterId);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                restores.add(new Restore(rs.getInt(1), rs.getInt(2), rs.getString(3)));
+            }
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to read %s: %s", e, db.getBulkRestoreTable(), e.getMessage());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+        if (restores.isEmpty())
+            return;
+        ctx.report(ReportLevel.ALTER, "bulk-prepare of a failed run found, restoring %d statements",
+                restores.size());
+        runRestores(db, ctx, alterId, restores);
+    }
+
+    /**
+     * Execute the restore statements: the parallel phase first (in parallel sessions, if configured), then the
+     * serial one. Failed statements are kept in the table, the others continue.
+     *
+     * @throws ApplyAlterException any statement failed
+     */
+    protected void runRestores(final DbInstance db, final RunContext ctx, final String alterId,
+                               List<Restore> restores)
+            throws ApplyAlterException {
+        final List<Restore> parallelPhase = new ArrayList<Restore>();
+        final List<Restore> serialPhase = new ArrayList<Restore>();
+        for (Restore restore : restores) {
+            (restore.phase == PHASE_PARALLEL ? parallelPhase : serialPhase).add(restore);
+        }
+        final List<Restore> failed = new ArrayList<Restore>();
+        Throwable firstError = null;
+
+        final int sessions = Math.min(parallel == null ? 1 : parallel.intValue(), parallelPhase.size());
+        if (sessions > 1) {
+            final ParallelSessions<Restore> ps = new ParallelSessions<Restore>(db, ctx, sessions, "bulk-restore",
+                    new ParallelSessions.Worker<Restore>() {
+                        public void process(Connection session, Restore restore)
+                                throws SQLException {
+                            executeRestore(db, ctx, session, alterId, restore);
+                        }
+                    });
+            final List<ParallelSessions.Failure<Restore>> failures;
+            try {
+                for (Restore restore : parallelPhase) {
+                    ps.submit(restore);
+                }
+            } finally {
+                failures = ps.finish();
+            }
+            for (ParallelSessions.Failure<Restore> failure : failures) {
+                failed.add(failure.getItem());
+                if (firstError == null)
+                    firstError = failure.getError();
+            }
+        } else {
+            serialPhase.addAll(0, parallelPhase);
+        }
+
+        final Connection con = db.getConnection(ctx);
+        for (Restore restore : serialPhase) {
+            try {
+                executeRestore(db, ctx, con, alterId, restore);
+            } catch (SQLException e) {
+                ctx.report(ReportLevel.ERROR, "%s failed: %s", restore, e.getMessage());
+                try {
+                    con.rollback();
+                } catch (SQLException e1) {
+                    //ignore, the original error is recorded
+                }
+                failed.add(restore);
+                if (firstError == null)
+                    firstError = e;
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            throw new ApplyAlterException(String.format("%d of %d bulk-prepare restore statements failed (they are "
+                    + "retried by the next run), first: %s", failed.size(), restores.size(), failed.get(0)),
+                    firstError);
+        }
+    }
+
+    private void executeRestore(DbInstance db, RunContext ctx, Connection con, String alterId, Restore restore)
+            throws SQLException {
+        ctx.report(ReportLevel.STATEMENT_STEP, "bulk-prepare restore: %s", restore.sql);
+        final long start = System.currentTimeMillis();
+        DbUtils.executeUpdate(con, restore.sql);
+        if (db.isLogTableUsed()) {
+            DbUtils.executeUpdate(con, "delete from " + db.getBulkRestoreTable() + " where id = ? and seq = ?",
+                    alterId, restore.seq);
+        }
+        con.commit();
+        ctx.report(ReportLevel.DETAIL, "  restored in %d ms", System.currentTimeMillis() - start);
+    }
+
+}
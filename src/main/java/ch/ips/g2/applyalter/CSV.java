@@ -1,15 +1,20 @@
 package ch.ips.g2.applyalter;
 
-import au.com.bytecode.opencsv.CSVReader;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
-import org.apache.commons.lang.StringUtils;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * SQL statement in Alter script
@@ -21,6 +26,57 @@ import java.util.Map;
 public class CSV extends AbstractStatement {
     protected String file;
     protected Integer step = null;
+    protected Integer batch = null;
+    protected String charset = null;
+    protected Mode mode = null;
+    protected String loadoptions = null;
+    protected Integer parallel = null;
+    @XStreamAlias("rows-per-insert")
+    protected Integer rowsPerInsert = null;
+    protected String key = null;
+    @XStreamAlias("delete-missing")
+    protected Boolean deleteMissing = null;
+    @XStreamAlias("delete-statement")
+    protected String deleteStatement = null;
+
+    /**
+     * Size of JDBC batches filling the staging table of {@link Mode#load}, if {@link #getBatch()} is not set.
+     */
+    public static final int DEFAULT_LOAD_BATCH = 1000;
+
+    /**
+     * How the rows are loaded.
+     */
+    public enum Mode {
+        /**
+         * The statement is executed for every row; the default.
+         */
+        statement,
+        /**
+         * PostgreSQL only: rows are streamed by <code>COPY ... FROM STDIN</code> to the table named by the statement
+         * (target table or staging table); columns are given by the CSV header.
+         */
+        copy,
+        /**
+         * DB2 only: rows are inserted to not logged temporary table and then moved to the table named by the statement
+         * by <code>LOAD FROM (...) OF CURSOR</code> (called by <code>SYSPROC.ADMIN_CMD</code>); columns are given by
+         * the CSV header. LOAD cannot be rolled back, so other run modes than {@link RunMode#SHARP} use plain
+         * <code>insert ... select</code> instead.
+         */
+        load,
+        /**
+         * Make the table named by the statement look like the file: rows are inserted to a temporary staging table
+         * and then merged to the target by {@link #getKey()} in one statement
+         * (see {@link DbInstance#makeMergeSql}); optionally, rows missing in the file are deleted.
+         */
+        merge,
+        /**
+         * Like the statement mode, but the statement is executed only for rows added or changed since the last run
+         * of the alter; {@link #getDeleteStatement()} is executed for the removed rows. Rows are identified by
+         * {@link #getKey()}, fingerprints are stored by {@link CsvRowLog}. Without log tables, all rows are applied.
+         */
+        delta
+    }
 
     public String getFile() {
         return file;
@@ -38,6 +94,113 @@ public class CSV extends AbstractStatement {
         this.step = step;
     }
 
+    /**
+     * Batch mode: rows are sent by JDBC batches ({@link PreparedStatement#executeBatch()}) of this size,
+     * independently of the commit {@link #getStep()}. The statement must not return a result set.
+     */
+    public Integer getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Integer batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Encoding of the CSV file; platform default if not specified.
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    public void setCharset(String charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Load mode, {@link Mode#statement} if not specified.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Options of {@link Mode#load}, appended after the <code>INSERT INTO</code> clause of the LOAD command
+     * (for example <code>NONRECOVERABLE</code> or <code>COPY YES TO /backup</code>). Required: there is no safe
+     * default (NONRECOVERABLE table is unusable on HADR standby and after rollforward, COPY NO leaves the tablespace
+     * in backup pending state).
+     */
+    public String getLoadoptions() {
+        return loadoptions;
+    }
+
+    public void setLoadoptions(String loadoptions) {
+        this.loadoptions = loadoptions;
+    }
+
+    /**
+     * Number of parallel sessions (statement mode only); null or 1 means the main connection. The rows are split into
+     * chunks of {@link #getStep()} rows (required) and every chunk is executed and committed by one session.
+     * Sessions are separate transactions: they cannot see uncommitted changes of the main connection.
+     */
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Multi-row insert (statement mode only): simple <code>insert into t (...) values (?, ...)</code> is rewritten to
+     * insert this many rows by one execution, see {@link MultiRowInsert}. Cannot be combined with {@link #getBatch()}.
+     */
+    public Integer getRowsPerInsert() {
+        return rowsPerInsert;
+    }
+
+    public void setRowsPerInsert(Integer rowsPerInsert) {
+        this.rowsPerInsert = rowsPerInsert;
+    }
+
+    /**
+     * Key columns of {@link Mode#merge}, delimited by commas; must be CSV columns.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * {@link Mode#delta}: statement executed for the rows removed from the file, with one parameter for every
+     * {@link #getKey()} column. Optional: without it, removed rows are just forgotten.
+     */
+    public String getDeleteStatement() {
+        return deleteStatement;
+    }
+
+    public void setDeleteStatement(String deleteStatement) {
+        this.deleteStatement = deleteStatement;
+    }
+
+    /**
+     * {@link Mode#merge}: delete rows of the table whose key is not in the file.
+     */
+    public boolean isDeleteMissing() {
+        return deleteMissing != null && deleteMissing.booleanValue();
+    }
+
+    public void setDeleteMissing(Boolean deleteMissing) {
+        this.deleteMissing = deleteMissing;
+    }
+
     public CSV() {
         super();
     }
@@ -52,19 +215,45 @@ public class CSV extends AbstractStatement {
 
     public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
             throws ApplyAlterException, SQLException {
+        if (mode == Mode.copy) {
+            executeCopy(dbConn, ctx, datafiles);
+            return;
+        }
+        if (mode == Mode.load) {
+            executeLoad(dbConn, ctx, datafiles);
+            return;
+        }
+        if (mode == Mode.merge) {
+            executeMerge(dbConn, ctx, datafiles);
+            return;
+        }
+        if (mode == Mode.delta) {
+            if (key == null || key.trim().length() < 1)
+                throw new ApplyAlterException("invalid apply script: CSV delta mode requires \"key\": " + getFile());
+            final CsvRowLog rowLog = CsvRowLog.create(dbConn, ctx, getFile());
+            if (rowLog != null) {
+                executeDelta(dbConn, ctx, datafiles, rowLog);
+                return;
+            }
+            //no fingerprints: all rows are applied by the statement mode
+        }
+        final boolean isParallel = parallel != null && parallel.intValue() > 1;
+        if (isParallel && (step == null || step.intValue() < 1))
+            throw new ApplyAlterException("invalid apply script: parallel CSV requires \"step\": " + getFile());
         Connection connection = dbConn.getConnection(ctx);
         String sql = getSqlStatement().trim();
 
-        final byte[] rawFile = datafiles.get(getFile());
-        if (rawFile == null) {
-            throw new ApplyAlterException(String.format("missing top-level element: <datafile>%s</datafile>", getFile()));
-        }
-
-        CSVReader rdr = new CSVReader(new InputStreamReader(new ByteArrayInputStream(rawFile)));
+        //the file is streamed, never loaded to memory; parsing runs in separate thread
+        final AsyncCsvReader rdr = new AsyncCsvReader(openFile(datafiles), getFile());
+        rdr.start();
 
         PreparedStatement st = null;
+        MultiRowInsert multiRow = null;
+        Throttle throttle = null;
         try {
             final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + getFile());
             final int numParams = headRow.length;
             ctx.report(ReportLevel.STATEMENT_STEP, "CSV columns:%s%n", Arrays.asList(headRow));
 
@@ -76,82 +265,826 @@ public class CSV extends AbstractStatement {
                 throw new ApplyAlterException(String.format("invalid CSV: %d columns for %d query parameters",
                         numParams, paramTypes.getParameterCount()));
             }
+            //resolve the types just once
+            final CsvConverter[] converters = CsvConverter.forParameters(paramTypes, numParams, headRow);
 
             int rows = 0;
             int execCnt = 0;
             final Integer step = getStep();
+            final int batchSize = (batch == null) ? 0 : batch.intValue();
+            int batched = 0;
+            if (batchSize > 0) {
+                ctx.report(ReportLevel.STATEMENT_STEP, "batch mode, %d rows per batch", batchSize);
+            }
+            if (step != null && step.intValue() > 0) {
+                throttle = createThrottle(dbConn, ctx);
+            }
+            if (isRowsPerInsert()) {
+                //fail early, before the parallel sessions are opened
+                multiRow = createMultiRowInsert(dbConn, connection, sql, converters, headRow);
+                ctx.report(ReportLevel.STATEMENT_STEP, "multi-row insert, %d rows per statement",
+                        multiRow.getWidth());
+            }
+            if (isParallel) {
+                //main statement served just for the checks
+                DbUtils.close(st);
+                st = null;
+                executeParallel(dbConn, ctx, datafiles, sql, rdr, headRow, converters, throttle);
+                return;
+            }
 
             String[] row;
             while ((row = rdr.readNext()) != null) {
-                //fill parameters
-                for (int paramIdx = 1; paramIdx <= numParams; paramIdx++) {
-                    String paramVal = row[paramIdx - 1];
-                    fillParam(st, paramTypes, paramIdx, paramVal);
-                }
+                if (multiRow != null) {
+                    //executed when there is enough rows
+                    rows += multiRow.add(row, execCnt + 1);
+                } else {
+                    setParameters(st, converters, headRow, row, execCnt + 1);
 
-                //execute
-                if (!st.execute()) // allows "with ... select ... update ..."
-                {
-                    rows += st.getUpdateCount();
+                    //execute
+                    if (batchSize > 0) {
+                        st.addBatch();
+                        batched++;
+                    } else if (!st.execute()) // allows "with ... select ... update ..."
+                    {
+                        rows += st.getUpdateCount();
+                    }
                 }
                 execCnt++;
 
+                if (batched >= batchSize && batched > 0) {
+                    rows += executeBatch(ctx, st, execCnt - batched);
+                    batched = 0;
+                }
+
                 if (step != null && step.intValue() > 0 && (execCnt % step) == 0) {
+                    if (multiRow != null) {
+                        rows += multiRow.flush();
+                    }
+                    if (batched > 0) {
+                        //commit must include all the rows so far
+                        rows += executeBatch(ctx, st, execCnt - batched);
+                        batched = 0;
+                    }
                     commitStep(ctx, connection);
+                    throttle.acquire(ctx, step);
                 }
 
             }
+            if (batched > 0) {
+                rows += executeBatch(ctx, st, execCnt - batched);
+            }
+            if (multiRow != null) {
+                rows += multiRow.flush();
+            }
 
             ctx.report(ReportLevel.STATEMENT_STEP, "statement executed %d times, changed rows: %d%n", execCnt, rows);
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        } finally {
             rdr.close();
+            DbUtils.close(st);
+            if (multiRow != null)
+                multiRow.close();
+            if (throttle != null)
+                throttle.close(ctx);
+        }
+
+    }
+
+    private boolean isRowsPerInsert() {
+        return rowsPerInsert != null && rowsPerInsert.intValue() > 1;
+    }
+
+    /**
+     * Create multi-row rewrite of the statement.
+     *
+     * @throws ApplyAlterException the statement cannot be rewritten
+     */
+    private MultiRowInsert createMultiRowInsert(DbInstance dbConn, Connection connection, String sql,
+                                                CsvConverter[] converters, String[] headRow) {
+        if (batch != null && batch.intValue() > 0)
+            throw new ApplyAlterException("invalid apply script: rows-per-insert cannot be combined with batch: "
+                    + getFile());
+        if (REGEX_PLACEHOLDER_DATAFILE.matcher(sql).find())
+            throw new ApplyAlterException("invalid apply script: rows-per-insert does not support datafile LOBs: "
+                    + getFile());
+        return new MultiRowInsert(dbConn, connection, sql, converters, headRow, rowsPerInsert.intValue());
+    }
+
+    /**
+     * Fill parameters of the statement from CSV row.
+     *
+     * @param rowNumber data row number (for error messages)
+     */
+    private void setParameters(PreparedStatement st, CsvConverter[] converters, String[] headRow, String[] row,
+                               int rowNumber)
+            throws SQLException {
+        for (int i = 0; i < converters.length; i++) {
+            try {
+                converters[i].set(st, i + 1, row[i]);
+            } catch (IllegalArgumentException e) {
+                throw new ApplyAlterException("invalid CSV value in data row %d, column %s: %s", e,
+                        rowNumber, headRow[i], e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Parallel variant of the statement mode: chunks of {@link #getStep()} rows are executed by
+     * {@link #getParallel()} sessions. Failed chunk is rolled back (committed chunks are kept) and the others continue;
+     * the statement fails at the end.
+     */
+    protected void executeParallel(final DbInstance dbConn, final RunContext ctx, final Map<String, byte[]> datafiles,
+                                   final String sql, AsyncCsvReader rdr, final String[] headRow,
+                                   final CsvConverter[] converters, final Throttle throttle)
+            throws IOException, SQLException {
+        //everything done so far must be visible to the other sessions
+        commitStep(ctx, dbConn.getConnection(ctx));
+
+        final int chunkSize = step.intValue();
+        ctx.report(ReportLevel.STATEMENT_STEP, "parallel: %d sessions, %d rows per chunk", parallel, chunkSize);
+
+        final AtomicInteger execCnt = new AtomicInteger();
+        final AtomicLong rows = new AtomicLong();
+        final ParallelSessions<CsvChunk> sessions = new ParallelSessions<CsvChunk>(dbConn, ctx, parallel.intValue(),
+                "csv", new ParallelSessions.Worker<CsvChunk>() {
+                    public void process(Connection session, CsvChunk chunk)
+                            throws SQLException {
+                        final int changed = executeChunk(dbConn, ctx, session, sql, datafiles, headRow, converters,
+                                chunk);
+                        commitStep(ctx, session);
+                        execCnt.addAndGet(chunk.rows.size());
+                        rows.addAndGet(changed);
+                        throttle.acquire(ctx, chunk.rows.size());
+                    }
+                });
+        final List<ParallelSessions.Failure<CsvChunk>> failures;
+        try {
+            int firstRow = 1;
+            List<String[]> chunkRows = new ArrayList<String[]>(chunkSize);
+            String[] row;
+            while ((row = rdr.readNext()) != null) {
+                chunkRows.add(row);
+                if (chunkRows.size() >= chunkSize) {
+                    sessions.submit(new CsvChunk(firstRow, chunkRows));
+                    firstRow += chunkRows.size();
+                    chunkRows = new ArrayList<String[]>(chunkSize);
+                }
+            }
+            if (!chunkRows.isEmpty()) {
+                sessions.submit(new CsvChunk(firstRow, chunkRows));
+            }
+        } catch (IOException e) {
+            sessions.cancel();
+            throw e;
+        } catch (RuntimeException e) {
+            sessions.cancel();
+            throw e;
+        } finally {
+            failures = sessions.finish();
+        }
+
+        ctx.report(ReportLevel.STATEMENT_STEP, "statement executed %d times, changed rows: %d (%d chunks)%n",
+                execCnt.get(), rows.get(), sessions.getSubmitted());
+        if (!failures.isEmpty()) {
+            //every failure has been already reported by the session
+            throw new ApplyAlterException(String.format("%d of %d chunks failed (other chunks are committed), "
+                    + "first: %s", failures.size(), sessions.getSubmitted(), failures.get(0).getItem()),
+                    failures.get(0).getError());
+        }
+    }
+
+    /**
+     * Execute one chunk of rows in the session, without commit.
+     *
+     * @return number of changed rows
+     */
+    private int executeChunk(DbInstance dbConn, RunContext ctx, Connection session, String sql,
+                             Map<String, byte[]> datafiles, String[] headRow, CsvConverter[] converters,
+                             CsvChunk chunk)
+            throws SQLException {
+        if (isRowsPerInsert()) {
+            final MultiRowInsert multiRow = createMultiRowInsert(dbConn, session, sql, converters, headRow);
+            try {
+                int rows = 0;
+                for (int i = 0; i < chunk.rows.size(); i++) {
+                    rows += multiRow.add(chunk.rows.get(i), chunk.firstRow + i);
+                }
+                return rows + multiRow.flush();
+            } finally {
+                multiRow.close();
+            }
+        }
+
+        final int batchSize = (batch == null) ? 0 : batch.intValue();
+        PreparedStatement st = null;
+        try {
+            //datafile map is not thread safe
+            synchronized (datafiles) {
+                st = prepareStatement(session, sql, datafiles, converters.length);
+            }
+            int rows = 0;
+            int batched = 0;
+            for (int i = 0; i < chunk.rows.size(); i++) {
+                setParameters(st, converters, headRow, chunk.rows.get(i), chunk.firstRow + i);
+                if (batchSize > 0) {
+                    st.addBatch();
+                    batched++;
+                    if (batched >= batchSize) {
+                        rows += executeBatch(ctx, st, chunk.firstRow + i - batched);
+                        batched = 0;
+                    }
+                } else if (!st.execute()) {
+                    rows += st.getUpdateCount();
+                }
+            }
+            if (batched > 0) {
+                rows += executeBatch(ctx, st, chunk.firstRow - 1 + chunk.rows.size() - batched);
+            }
+            return rows;
+        } finally {
+            DbUtils.close(st);
+        }
+    }
+
+    /**
+     * Rows processed by one session.
+     */
+    protected static class CsvChunk {
+        final int firstRow;
+        final List<String[]> rows;
+
+        CsvChunk(int firstRow, List<String[]> rows) {
+            this.firstRow = firstRow;
+            this.rows = rows;
+        }
+
+        @Override
+        public String toString() {
+            return "CSV rows " + firstRow + "-" + (firstRow + rows.size() - 1);
+        }
+    }
+
+    /**
+     * Copy mode: rows are streamed by {@link PgCopy}, one COPY command per {@link #getStep()} rows.
+     */
+    protected void executeCopy(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        if (!(dbConn instanceof PgInstance))
+            throw new ApplyAlterException("CSV copy mode is supported only on PostgreSQL: " + getFile());
+        Connection connection = dbConn.getConnection(ctx);
+        final String table = getSqlStatement().trim();
+
+        final AsyncCsvReader rdr = new AsyncCsvReader(openFile(datafiles), getFile());
+        rdr.start();
+
+        PgCopy copy = null;
+        Throttle throttle = null;
+        int chunkStart = 0;
+        try {
+            final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + getFile());
+            ctx.report(ReportLevel.STATEMENT_STEP, "CSV columns:%s%n", Arrays.asList(headRow));
+            copy = new PgCopy(connection, table, headRow);
+            ctx.report(ReportLevel.STATEMENT_STEP, "copy: %s", copy.getSql());
+
+            final int chunkSize = (step == null || step.intValue() < 1) ? Integer.MAX_VALUE : step.intValue();
+            if (chunkSize < Integer.MAX_VALUE) {
+                throttle = createThrottle(dbConn, ctx);
+            }
+            long rows = 0;
+            int execCnt = 0;
+            String[] row;
+            while ((row = rdr.readNext()) != null) {
+                if (row.length < headRow.length) {
+                    throw new ApplyAlterException("invalid CSV: data row %d has %d columns, header has %d",
+                            execCnt + 1, row.length, headRow.length);
+                }
+                try {
+                    copy.writeRow(row);
+                } catch (PgCopy.ColumnException e) {
+                    throw new ApplyAlterException("invalid CSV value in data row %d, column %s: %s", e,
+                            execCnt + 1, headRow[e.getColumn()], e.getMessage());
+                }
+                execCnt++;
+
+                if (copy.getChunkRows() >= chunkSize) {
+                    rows += copy.endChunk();
+                    chunkStart = execCnt;
+                    commitStep(ctx, connection);
+                    throttle.acquire(ctx, chunkSize);
+                }
+            }
+            rows += copy.endChunk();
+            chunkStart = execCnt;
+
+            ctx.report(ReportLevel.STATEMENT_STEP, "copied %d rows of %d%n", rows, execCnt);
         } catch (IOException e) {
             throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        } catch (SQLException e) {
+            //line numbers reported by the server are relative to the chunk; keep SQLSTATE for ignore-sqlstate
+            final int line = PgCopy.getErrorLine(e);
+            if (line > 0) {
+                throw new SQLException(String.format("CSV copy failed at data row %d: %s", chunkStart + line,
+                        e.getMessage()), e.getSQLState(), e.getErrorCode(), e);
+            }
+            throw e;
+        } finally {
+            rdr.close();
+            if (copy != null)
+                copy.cancel();
+            if (throttle != null)
+                throttle.close(ctx);
+        }
+    }
+
+    /**
+     * Load mode: the rows are inserted by JDBC batches into the staging table (declared temporary table, not logged),
+     * then moved to the target by DB2 LOAD utility. When LOAD leaves the target in SET INTEGRITY PENDING state
+     * (foreign keys, check constraints), the constraints are checked.
+     */
+    protected void executeLoad(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        if (!(dbConn instanceof Db2Instance))
+            throw new ApplyAlterException("CSV load mode is supported only on DB2: " + getFile());
+        if (loadoptions == null || loadoptions.trim().length() < 1)
+            throw new ApplyAlterException("invalid apply script: CSV load mode requires \"loadoptions\""
+                    + " (e.g. COPY YES TO dir, or NONRECOVERABLE): " + getFile());
+        Connection connection = dbConn.getConnection(ctx);
+        final String table = getSqlStatement().trim();
+
+        final AsyncCsvReader rdr = new AsyncCsvReader(openFile(datafiles), getFile());
+        rdr.start();
+
+        String staging = null;
+        try {
+            final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + getFile());
+            ctx.report(ReportLevel.STATEMENT_STEP, "CSV columns:%s%n", Arrays.asList(headRow));
+            final String cols = joinColumns(headRow);
+
+            //staging table has the columns of the target
+            staging = dbConn.createTempTable(ctx, connection, "APPLYALTER_CSV_LOAD",
+                    String.format("select %s from %s", cols, table), null);
+            stageRows(ctx, connection, rdr, headRow, staging);
+
+            final String select = String.format("select %s from %s", cols, staging);
+            if (ctx.getRunMode() == RunMode.SHARP) {
+                //staging table preserves rows on commit; LOAD should not wait for our own locks
+                connection.commit();
+                final String load = String.format("LOAD FROM (%s) OF CURSOR MESSAGES ON SERVER INSERT INTO %s (%s) %s",
+                        select, table, cols, loadoptions.trim());
+                runLoad(ctx, connection, load);
+                checkIntegrity(ctx, connection, table);
+            } else {
+                final int rows = DbUtils.executeUpdate(connection,
+                        String.format("insert into %s (%s) %s", table, cols, select));
+                ctx.report(ReportLevel.STATEMENT_STEP, "run mode %s: LOAD replaced by insert, %d rows inserted",
+                        ctx.getRunMode(), rows);
+            }
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        } finally {
+            rdr.close();
+            if (staging != null)
+                dbConn.dropTempTable(ctx, connection, staging);
+        }
+    }
+
+    /**
+     * Merge mode: the rows are inserted by JDBC batches into the staging table, then merged to the target by one
+     * statement and optionally the missing rows are deleted by another one. Everything is one transaction, unless
+     * the database commits when the staging table is created and dropped (Oracle, see
+     * {@link DbInstance#isTempTableCommitting()}): there, merge mode is refused outside {@link RunMode#SHARP} and the
+     * staging table is named by the session.
+     */
+    protected void executeMerge(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        if (key == null || key.trim().length() < 1)
+            throw new ApplyAlterException("invalid apply script: CSV merge mode requires \"key\": " + getFile());
+        if (dbConn.isTempTableCommitting() && ctx.getRunMode() != RunMode.SHARP)
+            throw new ApplyAlterException("CSV merge mode commits on %s (staging table DDL), refused in run mode "
+                    + "%s: %s", dbConn.getEngine(), ctx.getRunMode(), getFile());
+        Connection connection = dbConn.getConnection(ctx);
+        final String table = getSqlStatement().trim();
+
+        final AsyncCsvReader rdr = new AsyncCsvReader(openFile(datafiles), getFile());
+        rdr.start();
+
+        String staging = null;
+        try {
+            final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + getFile());
+            ctx.report(ReportLevel.STATEMENT_STEP, "CSV columns:%s%n", Arrays.asList(headRow));
+            final List<String> columns = new ArrayList<String>();
+            for (String column : headRow) {
+                columns.add(column.trim());
+            }
+            final List<String> keys = new ArrayList<String>();
+            for (String keyColumn : key.split(",")) {
+                keys.add(findColumn(columns, keyColumn.trim()));
+            }
+
+            //short base: Oracle identifiers are limited to 30 characters, with the SID and index suffix
+            staging = dbConn.createTempTable(ctx, connection,
+                    dbConn.makeSessionTempTableName(connection, "APPLYALTER_MERGE"),
+                    String.format("select %s from %s", joinColumns(headRow), table), key);
+            stageRows(ctx, connection, rdr, headRow, staging);
+            dbConn.analyzeTempTable(ctx, connection, staging);
+
+            final String merge = dbConn.makeMergeSql(table, staging, columns, keys);
+            ctx.report(ReportLevel.STATEMENT_STEP, "merge: %s", merge);
+            final int merged = DbUtils.executeUpdate(connection, merge);
+            ctx.report(ReportLevel.STATEMENT_STEP, "%d rows merged", merged);
+
+            if (isDeleteMissing()) {
+                final StringBuilder keyCondition = new StringBuilder();
+                for (String keyColumn : keys) {
+                    if (keyCondition.length() > 0)
+                        keyCondition.append(" and ");
+                    keyCondition.append("s.").append(keyColumn).append(" = t.").append(keyColumn);
+                }
+                final String delete = String.format("delete from %s t where not exists (select 1 from %s s where %s)",
+                        table, staging, keyCondition);
+                ctx.report(ReportLevel.STATEMENT_STEP, "delete: %s", delete);
+                final int deleted = DbUtils.executeUpdate(connection, delete);
+                ctx.report(ReportLevel.STATEMENT_STEP, "%d missing rows deleted", deleted);
+            }
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        } finally {
+            rdr.close();
+            if (staging != null)
+                dbConn.dropTempTable(ctx, connection, staging);
+        }
+    }
+
+    /**
+     * Find column by name, case insensitive.
+     *
+     * @return the name as used in CSV header
+     * @throws ApplyAlterException not found
+     */
+    private String findColumn(List<String> columns, String name) {
+        return columns.get(findColumnIndex(columns, name));
+    }
+
+    /**
+     * Find column by name, case insensitive.
+     *
+     * @return index of the column
+     * @throws ApplyAlterException not found
+     */
+    private int findColumnIndex(List<String> columns, String name) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase(name))
+                return i;
+        }
+        throw new ApplyAlterException("invalid apply script: key %s is not a column of CSV %s", name, getFile());
+    }
+
+    /**
+     * Marker of the keys seen in the current file (compared by identity).
+     */
+    private static final String SEEN = new String("seen");
+
+    /**
+     * Delta mode: compare rows with fingerprints of the last run and apply just the differences.
+     */
+    protected void executeDelta(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles, CsvRowLog rowLog)
+            throws ApplyAlterException, SQLException {
+        Connection connection = dbConn.getConnection(ctx);
+        String sql = getSqlStatement().trim();
+
+        final AsyncCsvReader rdr = new AsyncCsvReader(openFile(datafiles), getFile());
+        rdr.start();
+
+        PreparedStatement st = null;
+        PreparedStatement stDelete = null;
+        Throttle throttle = null;
+        try {
+            final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + getFile());
+            final int numParams = headRow.length;
+            ctx.report(ReportLevel.STATEMENT_STEP, "CSV columns:%s%n", Arrays.asList(headRow));
+
+            st = prepareStatement(connection, sql, datafiles, numParams);
+            final ParameterMetaData paramTypes = st.getParameterMetaData();
+            if (paramTypes.getParameterCount() != numParams) {
+                throw new ApplyAlterException(String.format("invalid CSV: %d columns for %d query parameters",
+                        numParams, paramTypes.getParameterCount()));
+            }
+            final CsvConverter[] converters = CsvConverter.forParameters(paramTypes, numParams, headRow);
+
+            final List<String> columns = new ArrayList<String>();
+            for (String column : headRow) {
+                columns.add(column.trim());
+            }
+            final String[] keyNames = key.split(",");
+            final int[] keyColumns = new int[keyNames.length];
+            for (int i = 0; i < keyNames.length; i++) {
+                keyColumns[i] = findColumnIndex(columns, keyNames[i].trim());
+                keyNames[i] = columns.get(keyColumns[i]);
+            }
+
+            //key -> hash of the last run; keys found in the file are replaced by SEEN
+            final Map<String, String> fingerprints = rowLog.load(connection);
+            ctx.report(ReportLevel.STATEMENT_STEP, "delta mode: %d row fingerprints of the last run",
+                    fingerprints.size());
+
+            final Integer step = getStep();
+            final boolean isStep = step != null && step.intValue() > 0;
+            if (isStep) {
+                throttle = createThrottle(dbConn, ctx);
+            }
+            long rows = 0;
+            int execCnt = 0;
+            int rowCnt = 0;
+            int added = 0;
+            int changed = 0;
+            int unchanged = 0;
+            String[] row;
+            while ((row = rdr.readNext()) != null) {
+                rowCnt++;
+                final String rowKey = CsvRowLog.makeKey(row, keyColumns);
+                final String hash = rowLog.hashRow(row, numParams);
+                final String lastHash = fingerprints.put(rowKey, SEEN);
+                if (lastHash == SEEN)
+                    throw new ApplyAlterException("duplicate key in CSV data row %d: %s", rowCnt, rowKey);
+                if (hash.equals(lastHash)) {
+                    unchanged++;
+                    continue;
+                }
+
+                setParameters(st, converters, headRow, row, rowCnt);
+                if (!st.execute()) {
+                    rows += st.getUpdateCount();
+                }
+                execCnt++;
+                if (lastHash == null) {
+                    added++;
+                    rowLog.added(connection, rowKey, hash);
+                } else {
+                    changed++;
+                    rowLog.changed(connection, rowKey, hash);
+                }
+                commitDeltaStep(ctx, connection, rowLog, throttle, added + changed);
+            }
+
+            //keys not seen: removed from the file
+            int removed = 0;
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                if (entry.getValue() == SEEN)
+                    continue;
+                if (deleteStatement != null) {
+                    if (stDelete == null) {
+                        stDelete = connection.prepareStatement(deleteStatement.trim());
+                        if (stDelete.getParameterMetaData().getParameterCount() != keyColumns.length)
+                            throw new ApplyAlterException("invalid delete-statement: %d key columns for %d parameters",
+                                    keyColumns.length, stDelete.getParameterMetaData().getParameterCount());
+                    }
+                    final String[] keyValues = CsvRowLog.splitKey(entry.getKey(), keyColumns.length);
+                    for (int i = 0; i < keyColumns.length; i++) {
+                        converters[keyColumns[i]].set(stDelete, i + 1, keyValues[i]);
+                    }
+                    if (!stDelete.execute()) {
+                        rows += stDelete.getUpdateCount();
+                    }
+                    execCnt++;
+                }
+                removed++;
+                rowLog.removed(connection, entry.getKey());
+                commitDeltaStep(ctx, connection, rowLog, throttle, added + changed + removed);
+            }
+            rowLog.flush();
+            if (removed > 0 && deleteStatement == null) {
+                ctx.report(ReportLevel.STATEMENT_STEP, "no delete-statement: %d removed rows are just forgotten",
+                        removed);
+            }
+
+            ctx.report(ReportLevel.STATEMENT_STEP, "delta: %d rows added, %d changed, %d removed, %d unchanged",
+                    added, changed, removed, unchanged);
+            ctx.report(ReportLevel.STATEMENT_STEP, "statement executed %d times, changed rows: %d%n", execCnt, rows);
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        } finally {
+            rdr.close();
+            DbUtils.close(st);
+            DbUtils.close(stDelete);
+            rowLog.close();
+            if (throttle != null)
+                throttle.close(ctx);
+        }
+    }
+
+    /**
+     * Delta mode: send the fingerprints when there is enough of them, commit every {@link #getStep()} changes.
+     *
+     * @param throttle throttle, null if there is no step
+     * @param changes  number of changes (added, changed and removed rows) so far
+     */
+    private void commitDeltaStep(RunContext ctx, Connection connection, CsvRowLog rowLog, Throttle throttle,
+                                 int changes)
+            throws SQLException {
+        if (throttle != null && (changes % step) == 0) {
+            rowLog.flush();
+            commitStep(ctx, connection);
+            throttle.acquire(ctx, step);
+        } else if (rowLog.getPending() >= DEFAULT_LOAD_BATCH) {
+            rowLog.flush();
+        }
+    }
+
+    /**
+     * Column list from the CSV header: <code>a, b, c</code>.
+     */
+    private static String joinColumns(String[] headRow) {
+        final StringBuilder cols = new StringBuilder();
+        for (int i = 0; i < headRow.length; i++) {
+            if (i > 0)
+                cols.append(", ");
+            cols.append(headRow[i].trim());
+        }
+        return cols.toString();
+    }
+
+    /**
+     * Insert all the remaining CSV rows to the staging table by JDBC batches ({@link #getBatch()} rows, default
+     * {@link #DEFAULT_LOAD_BATCH}); no commit.
+     *
+     * @return number of rows
+     */
+    private int stageRows(RunContext ctx, Connection connection, AsyncCsvReader rdr, String[] headRow, String staging)
+            throws IOException, SQLException {
+        final int numParams = headRow.length;
+        final StringBuilder params = new StringBuilder();
+        for (int i = 0; i < numParams; i++) {
+            params.append(i > 0 ? ", ?" : "?");
+        }
+        PreparedStatement st = null;
+        try {
+            st = connection.prepareStatement(String.format("insert into %s (%s) values (%s)", staging,
+                    joinColumns(headRow), params));
+            final CsvConverter[] converters = CsvConverter.forParameters(st.getParameterMetaData(), numParams, headRow);
+
+            final int batchSize = (batch == null || batch.intValue() < 1) ? DEFAULT_LOAD_BATCH : batch.intValue();
+            int execCnt = 0;
+            int batched = 0;
+            String[] row;
+            while ((row = rdr.readNext()) != null) {
+                setParameters(st, converters, headRow, row, execCnt + 1);
+                st.addBatch();
+                batched++;
+                execCnt++;
+                if (batched >= batchSize) {
+                    executeBatch(ctx, st, execCnt - batched);
+                    batched = 0;
+                }
+            }
+            if (batched > 0) {
+                executeBatch(ctx, st, execCnt - batched);
+            }
+            ctx.report(ReportLevel.STATEMENT_STEP, "%d rows staged in %s", execCnt, staging);
+            return execCnt;
         } finally {
             DbUtils.close(st);
         }
+    }
+
+    /**
+     * Call LOAD by <code>SYSPROC.ADMIN_CMD</code> and report its result; rejected rows are reported and fail
+     * the statement.
+     */
+    private void runLoad(RunContext ctx, Connection connection, String load)
+            throws SQLException {
+        ctx.report(ReportLevel.STATEMENT_STEP, "load: %s", load);
+        CallableStatement call = null;
+        ResultSet rs = null;
+        long rejected = 0;
+        String msgRetrieval = null;
+        String msgRemoval = null;
+        try {
+            call = connection.prepareCall("call sysproc.admin_cmd(?)");
+            call.setString(1, load);
+            call.execute();
+            rs = call.getResultSet();
+            if (rs != null && rs.next()) {
+                rejected = rs.getLong("ROWS_REJECTED");
+                ctx.report(ReportLevel.STATEMENT_STEP,
+                        "LOAD finished: %d rows read, %d loaded, %d rejected, %d skipped, %d deleted, %d committed",
+                        rs.getLong("ROWS_READ"), rs.getLong("ROWS_LOADED"), rejected, rs.getLong("ROWS_SKIPPED"),
+                        rs.getLong("ROWS_DELETED"), rs.getLong("ROWS_COMMITTED"));
+                msgRetrieval = rs.getString("MSG_RETRIEVAL");
+                msgRemoval = rs.getString("MSG_REMOVAL");
+            }
+        } finally {
+            DbUtils.close(call, rs);
+        }
 
+        //messages of the utility are kept on the server until removed
+        if (msgRetrieval != null) {
+            reportLoadMessages(ctx, connection, msgRetrieval, rejected > 0 ? ReportLevel.ERROR : ReportLevel.DETAIL);
+        }
+        if (msgRemoval != null) {
+            try {
+                DbUtils.executeUpdate(connection, msgRemoval);
+            } catch (SQLException e) {
+                ctx.report(ReportLevel.DETAIL, "failed to remove LOAD messages: %s", e.getMessage());
+            }
+        }
+        if (rejected > 0) {
+            throw new ApplyAlterException("LOAD of CSV %s rejected %d rows", getFile(), rejected);
+        }
     }
 
     /**
-     * Check the value type, parse value from CSV and call appropriate setXXX method.
+     * LOAD INSERT into a table with foreign keys or check constraints leaves it in SET INTEGRITY PENDING state
+     * (<code>SYSCAT.TABLES.STATUS = 'C'</code>), inaccessible until the constraints are checked: do it now.
+     *
+     * @throws SQLException the check failed, the table is left in the pending state
      */
-    private void fillParam(PreparedStatement st, ParameterMetaData paramTypes, int paramIdx, String paramVal)
+    private void checkIntegrity(RunContext ctx, Connection connection, String table)
             throws SQLException {
-        final int type = paramTypes.getParameterType(paramIdx);
-        //string types are special: empty string is not null!
-        switch (type) {
-            case Types.VARCHAR:
-            case Types.CLOB:
-            case Types.CHAR:
-                st.setString(paramIdx, paramVal);
-                return;
+        final int dot = table.indexOf('.');
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        String status = null;
+        try {
+            st = connection.prepareStatement("select status from syscat.tables where tabschema = "
+                    + (dot < 0 ? "current schema" : "?") + " and tabname = ?");
+            int idx = 1;
+            if (dot >= 0)
+                st.setString(idx++, catalogName(table.substring(0, dot)));
+            st.setString(idx, catalogName(table.substring(dot + 1)));
+            rs = st.executeQuery();
+            if (rs.next())
+                status = rs.getString(1);
+        } finally {
+            DbUtils.close(st, rs);
         }
-        //in other cases, empty string is considered NULL
-        if (StringUtils.isEmpty(paramVal)) {
-            st.setNull(paramIdx, type);
+        if (!"C".equals(status))
             return;
+        ctx.report(ReportLevel.STATEMENT_STEP, "table %s is in SET INTEGRITY PENDING state, checking constraints",
+                table);
+        try {
+            DbUtils.executeUpdate(connection, "set integrity for " + table + " immediate checked");
+        } catch (SQLException e) {
+            throw new SQLException(String.format("SET INTEGRITY after LOAD failed, table %s is left in SET INTEGRITY"
+                    + " PENDING state: %s", table, e.getMessage()), e.getSQLState(), e.getErrorCode(), e);
         }
+    }
+
+    /**
+     * Name as stored in the catalog: unquoted identifiers are upper case.
+     */
+    private static String catalogName(String identifier) {
+        final String name = identifier.trim();
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+            return name.substring(1, name.length() - 1);
+        return name.toUpperCase();
+    }
+
+    private void reportLoadMessages(RunContext ctx, Connection connection, String query, ReportLevel level) {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = connection.createStatement();
+            rs = st.executeQuery(query);
+            while (rs.next()) {
+                ctx.report(level, "  %s %s", rs.getString("SQLCODE"), rs.getString("MSG"));
+            }
+        } catch (SQLException e) {
+            ctx.report(ReportLevel.DETAIL, "failed to read LOAD messages: %s", e.getMessage());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Open the CSV datafile.
+     */
+    protected Reader openFile(Map<String, byte[]> datafiles) {
+        final Charset cs;
+        try {
+            cs = (charset == null) ? Charset.defaultCharset() : Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            throw new ApplyAlterException("invalid charset %s for CSV %s", e, charset, getFile());
+        }
+        final InputStream in;
+        try {
+            in = DatafileMap.openStream(datafiles, getFile());
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading CSV file " + getFile(), e);
+        }
+        if (in == null) {
+            throw new ApplyAlterException(String.format("missing top-level element: <datafile>%s</datafile>", getFile()));
+        }
+        return new InputStreamReader(new BufferedInputStream(in, 64 * 1024), cs);
+    }
 
-        switch (type) {
-            case Types.INTEGER:
-                st.setInt(paramIdx, Integer.parseInt(paramVal));
-                break;
-            case Types.BIGINT:
-                st.setLong(paramIdx, Long.parseLong(paramVal));
-                break;
-            case Types.SMALLINT:
-                st.setShort(paramIdx, Short.parseShort(paramVal));
-                break;
-            case Types.DECIMAL:
-            case Types.DOUBLE:
-                st.setDouble(paramIdx, Double.parseDouble(paramVal));
-                break;
-            case Types.FLOAT:
-                st.setFloat(paramIdx, Float.parseFloat(paramVal));
-                break;
-            default:
-                throw new ApplyAlterException("unsupported type in CSV: " + paramTypes.getParameterTypeName(paramIdx));
-        }
-    }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,291 @@
+package ch.ips.g2.applyalter;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Conversion of CSV cell to statement parameter. Converters are resolved once from {@link ParameterMetaData}
+ * (see {@link #forParameters}), so the row loop just indexes the array: no driver calls and no type switches
+ * per cell.
+ * <p/>
+ * Empty cell is NULL, except string types (empty string). Formats:
+ * <ul>
+ * <li>DATE <code>yyyy-mm-dd</code>, TIME <code>hh:mm:ss</code></li>
+ * <li>TIMESTAMP <code>yyyy-mm-dd hh:mm:ss[.fffffffff]</code>, "T" separator and plain date are accepted too</li>
+ * <li>BOOLEAN <code>true/false, t/f, y/n, 1/0</code></li>
+ * <li>binary types as hex, optionally with <code>0x</code> or <code>\x</code> prefix</li>
+ * <li>DECIMAL/NUMERIC exactly, as {@link BigDecimal}</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public abstract class CsvConverter {
+    /**
+     * SQL type of the parameter (used for NULL).
+     */
+    protected final int sqlType;
+
+    protected CsvConverter(int sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    /**
+     * Set the parameter.
+     *
+     * @param st    statement
+     * @param idx   parameter index
+     * @param value CSV cell, not null
+     * @throws SQLException             error setting the parameter
+     * @throws IllegalArgumentException invalid value (including {@link NumberFormatException})
+     */
+    public void set(PreparedStatement st, int idx, String value)
+            throws SQLException {
+        if (value.length() == 0) {
+            st.setNull(idx, sqlType);
+        } else {
+            setValue(st, idx, value);
+        }
+    }
+
+    /**
+     * Set non-empty value.
+     */
+    protected abstract void setValue(PreparedStatement st, int idx, String value)
+            throws SQLException;
+
+    /**
+     * Text of the value for PostgreSQL COPY, with the same NULL semantics as {@link #set}.
+     *
+     * @param value CSV cell, not null
+     * @return text for the server, null for NULL
+     * @throws IllegalArgumentException invalid value
+     */
+    public String copyText(String value) {
+        return (value.length() == 0) ? null : copyValue(value);
+    }
+
+    /**
+     * COPY text of non-empty value; the server parses most of the formats accepted here by itself.
+     */
+    protected String copyValue(String value) {
+        return value;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Resolve converters of all parameters.
+     *
+     * @param paramTypes metadata of the statement
+     * @param count      number of parameters to resolve
+     * @param names      column names (for error messages)
+     * @return converters; index 0 is the first parameter
+     * @throws SQLException        failed to get metadata
+     * @throws ApplyAlterException unsupported type
+     */
+    public static CsvConverter[] forParameters(ParameterMetaData paramTypes, int count, String[] names)
+            throws SQLException {
+        CsvConverter[] converters = new CsvConverter[count];
+        for (int i = 0; i < count; i++) {
+            converters[i] = forType(paramTypes.getParameterType(i + 1));
+            if (converters[i] == null)
+                throw new ApplyAlterException("unsupported type in CSV: %s (column %s)",
+                        paramTypes.getParameterTypeName(i + 1), names[i]);
+        }
+        return converters;
+    }
+
+    /**
+     * Converter for JDBC type.
+     *
+     * @param sqlType type from {@link Types}
+     * @return converter, null if the type is not supported
+     */
+    public static CsvConverter forType(int sqlType) {
+        switch (sqlType) {
+            case Types.VARCHAR:
+            case Types.CHAR:
+            case Types.LONGVARCHAR:
+            case Types.CLOB:
+            case Types.NVARCHAR:
+            case Types.NCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.NCLOB:
+                return new StringConverter(sqlType);
+            case Types.INTEGER:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setInt(idx, Integer.parseInt(value));
+                    }
+                };
+            case Types.BIGINT:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setLong(idx, Long.parseLong(value));
+                    }
+                };
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setShort(idx, Short.parseShort(value));
+                    }
+                };
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setBigDecimal(idx, new BigDecimal(value));
+                    }
+                };
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setDouble(idx, Double.parseDouble(value));
+                    }
+                };
+            case Types.REAL:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setFloat(idx, Float.parseFloat(value));
+                    }
+                };
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setBoolean(idx, parseBoolean(value));
+                    }
+                };
+            case Types.DATE:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setDate(idx, Date.valueOf(value));
+                    }
+                };
+            case Types.TIME:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setTime(idx, Time.valueOf(value));
+                    }
+                };
+            case Types.TIMESTAMP:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setTimestamp(idx, parseTimestamp(value));
+                    }
+                };
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setBytes(idx, parseHex(value));
+                    }
+
+                    @Override
+                    protected String copyValue(String value) {
+                        //bytea input: always with \x prefix
+                        return "\\x" + AlterLoader.bytes2hex(parseHex(value));
+                    }
+                };
+            case Types.OTHER:
+                //PostgreSQL uuid, json, ...: the server converts the text
+                return new CsvConverter(sqlType) {
+                    protected void setValue(PreparedStatement st, int idx, String value)
+                            throws SQLException {
+                        st.setObject(idx, value, Types.OTHER);
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * String types: empty string is not null.
+     */
+    static class StringConverter extends CsvConverter {
+        StringConverter(int sqlType) {
+            super(sqlType);
+        }
+
+        @Override
+        public void set(PreparedStatement st, int idx, String value)
+                throws SQLException {
+            st.setString(idx, value);
+        }
+
+        @Override
+        protected void setValue(PreparedStatement st, int idx, String value)
+                throws SQLException {
+            st.setString(idx, value);
+        }
+
+        @Override
+        public String copyText(String value) {
+            return value;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    static boolean parseBoolean(String value) {
+        if (value.length() == 1) {
+            switch (Character.toLowerCase(value.charAt(0))) {
+                case '1':
+                case 't':
+                case 'y':
+                    return true;
+                case '0':
+                case 'f':
+                case 'n':
+                    return false;
+            }
+        } else if ("true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value) || "no".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException("invalid boolean value: " + value);
+    }
+
+    static Timestamp parseTimestamp(String value) {
+        if (value.length() == 10) {
+            //just date
+            return new Timestamp(Date.valueOf(value).getTime());
+        }
+        if (value.length() > 10 && value.charAt(10) == 'T') {
+            value = value.substring(0, 10) + ' ' + value.substring(11);
+        }
+        return Timestamp.valueOf(value);
+    }
+
+    static byte[] parseHex(String value) {
+        int start = 0;
+        if (value.length() >= 2 && value.charAt(1) == 'x' && (value.charAt(0) == '0' || value.charAt(0) == '\\')) {
+            start = 2;
+        }
+        return AlterLoader.hex2bytes(value, start);
+    }
+
+}
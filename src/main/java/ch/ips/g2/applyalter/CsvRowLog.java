@@ -0,0 +1,237 @@
+package ch.ips.g2.applyalter;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fingerprints of the CSV rows applied last time, stored in table <code>applyalter_csv_rows</code> (created by
+ * internal script, see {@link DbInstance#getCsvRowsTable()}) by alter id and datafile name. Every row is identified
+ * by its key columns and has SHA-1 hash of all the values, so that the next run of the same alter can apply just
+ * the added, changed and removed rows. The rows are indexed by SHA-1 of the key, not by the key itself: index key
+ * length is limited (DB2 SQL0614N).
+ * <p/>
+ * Changes of the fingerprints are sent by JDBC batches in the transaction of the rows; {@link #flush()} must be
+ * called before every commit. Not thread safe.
+ *
+ * @version $Id$
+ */
+public class CsvRowLog {
+    /**
+     * Separator of the key values in the stored key (unit separator, not expected in the data).
+     */
+    public static final char SEPARATOR = '\u001f';
+    /**
+     * Maximum length of the stored key in bytes (UTF-8).
+     */
+    public static final int MAX_KEY_LENGTH = 2000;
+
+    private final String table;
+    private final String alterId;
+    private final String datafile;
+    private final MessageDigest digest;
+    private PreparedStatement insert;
+    private PreparedStatement update;
+    private PreparedStatement delete;
+    private int pending;
+
+    private CsvRowLog(String table, String alterId, String datafile) {
+        this.table = table;
+        this.alterId = alterId;
+        this.datafile = datafile;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ApplyAlterException("SHA-1 not supported", e);
+        }
+    }
+
+    /**
+     * Create row log for the datafile.
+     *
+     * @param db       database instance
+     * @param ctx      run context
+     * @param datafile datafile name
+     * @return row log; null if the log tables are not used
+     */
+    public static CsvRowLog create(DbInstance db, RunContext ctx, String datafile) {
+        if (!db.isLogTableUsed() || db.getCurrentAlterId() == null) {
+            ctx.report(ReportLevel.STATEMENT_STEP, "log table disabled, CSV row fingerprints are not available");
+            return null;
+        }
+        return new CsvRowLog(db.getCsvRowsTable(), db.getCurrentAlterId(), datafile);
+    }
+
+    /**
+     * Read the fingerprints of the last run.
+     *
+     * @return map: key to row hash; empty on the first run
+     * @throws SQLException database error
+     */
+    public Map<String, String> load(Connection con)
+            throws SQLException {
+        final Map<String, String> result = new HashMap<String, String>();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select row_key, row_hash from " + table + " where id = ? and datafile = ?");
+            st.setString(1, alterId);
+            st.setString(2, datafile);
+            st.setFetchSize(10000);
+            rs = st.executeQuery();
+            while (rs.next()) {
+                result.put(rs.getString(1), rs.getString(2));
+            }
+        } finally {
+            DbUtils.close(st, rs);
+        }
+        return result;
+    }
+
+    /**
+     * Stored key of the row: values of the key columns joined by {@link #SEPARATOR}.
+     *
+     * @throws ApplyAlterException the key is too long
+     */
+    public static String makeKey(String[] row, int[] keyColumns) {
+        final StringBuilder b = new StringBuilder();
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0)
+                b.append(SEPARATOR);
+            b.append(row[keyColumns[i]]);
+        }
+        //cheap check first: no character takes more than 3 bytes in UTF-8 (surrogate pair takes 4 bytes per 2 chars)
+        if (b.length() * 3 > MAX_KEY_LENGTH && utf8(b.toString()).length > MAX_KEY_LENGTH)
+            throw new ApplyAlterException("CSV key too long for row fingerprint (max %d bytes): %s",
+                    MAX_KEY_LENGTH, b.substring(0, Math.min(b.length(), 100)));
+        return b.toString();
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Values of the key columns, inverse of {@link #makeKey}.
+     */
+    public static String[] splitKey(String key, int keyCount) {
+        final String[] values = new String[keyCount];
+        int start = 0;
+        for (int i = 0; i < keyCount - 1; i++) {
+            final int end = key.indexOf(SEPARATOR, start);
+            values[i] = key.substring(start, end);
+            start = end + 1;
+        }
+        values[keyCount - 1] = key.substring(start);
+        return values;
+    }
+
+    /**
+     * SHA-1 of the row values (hex).
+     *
+     * @param row   the row
+     * @param count number of columns
+     */
+    public String hashRow(String[] row, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                digest.update((byte) SEPARATOR);
+            digest.update(utf8(row[i]));
+        }
+        return AlterLoader.bytes2hex(digest.digest());
+    }
+
+    /**
+     * SHA-1 of the stored key (hex), the indexed column.
+     */
+    public String hashKey(String key) {
+        return AlterLoader.bytes2hex(digest.digest(utf8(key)));
+    }
+
+    public void added(Connection con, String key, String hash)
+            throws SQLException {
+        if (insert == null) {
+            insert = con.prepareStatement("insert into " + table + " (id, datafile, row_key, key_hash, row_hash)"
+                    + " values (?, ?, ?, ?, ?)");
+        }
+        insert.setString(1, alterId);
+        insert.setString(2, datafile);
+        insert.setString(3, key);
+        insert.setString(4, hashKey(key));
+        insert.setString(5, hash);
+        insert.addBatch();
+        pending++;
+    }
+
+    public void changed(Connection con, String key, String hash)
+            throws SQLException {
+        if (update == null) {
+            update = con.prepareStatement("update " + table + " set row_hash = ?"
+                    + " where id = ? and datafile = ? and key_hash = ?");
+        }
+        update.setString(1, hash);
+        update.setString(2, alterId);
+        update.setString(3, datafile);
+        update.setString(4, hashKey(key));
+        update.addBatch();
+        pending++;
+    }
+
+    public void removed(Connection con, String key)
+            throws SQLException {
+        if (delete == null) {
+            delete = con.prepareStatement("delete from " + table + " where id = ? and datafile = ? and key_hash = ?");
+        }
+        delete.setString(1, alterId);
+        delete.setString(2, datafile);
+        delete.setString(3, hashKey(key));
+        delete.addBatch();
+        pending++;
+    }
+
+    /**
+     * Number of changes not yet sent to the database.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Send all pending changes (before commit).
+     *
+     * @throws SQLException database error
+     */
+    public void flush()
+            throws SQLException {
+        if (pending == 0)
+            return;
+        if (insert != null)
+            insert.executeBatch();
+        if (update != null)
+            update.executeBatch();
+        if (delete != null)
+            delete.executeBatch();
+        pending = 0;
+    }
+
+    public void close() {
+        DbUtils.close(insert);
+        DbUtils.close(update);
+        DbUtils.close(delete);
+        insert = null;
+        update = null;
+        delete = null;
+        pending = 0;
+    }
+
+}
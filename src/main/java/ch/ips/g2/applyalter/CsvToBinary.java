@@ -0,0 +1,112 @@
+package ch.ips.g2.applyalter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Converts CSV datafile to {@link BinaryDatafile} (for {@link BinLoad}). The first CSV line is the header (column
+ * names), the column types are given on the command line:
+ * <pre>
+ * java -cp applyalter.jar ch.ips.g2.applyalter.CsvToBinary data.csv data.bin int,varchar,decimal,timestamp [UTF-8]
+ * </pre>
+ * Values are parsed exactly like by the <code>csv</code> statement, so the conversion fails on any value
+ * the database would not accept.
+ *
+ * @version $Id$
+ */
+public class CsvToBinary {
+
+    /**
+     * Convert the CSV.
+     *
+     * @param in     CSV text, closed at the end
+     * @param name   CSV name (for error messages)
+     * @param types  column types
+     * @param output binary datafile, closed at the end
+     * @return number of data rows
+     * @throws IOException         read or write error
+     * @throws ApplyAlterException invalid CSV
+     */
+    public static long convert(Reader in, String name, BinaryDatafile.Type[] types, OutputStream output)
+            throws IOException {
+        final AsyncCsvReader rdr = new AsyncCsvReader(in, name);
+        rdr.start();
+        BinaryDatafile.Writer writer = null;
+        try {
+            final String[] headRow = rdr.readNext();
+            if (headRow == null)
+                throw new ApplyAlterException("empty CSV file " + name);
+            if (headRow.length != types.length)
+                throw new ApplyAlterException("invalid CSV: %d columns for %d types", headRow.length, types.length);
+            final String[] names = new String[headRow.length];
+            for (int i = 0; i < headRow.length; i++) {
+                names[i] = headRow[i].trim();
+            }
+            writer = new BinaryDatafile.Writer(output, names, types);
+
+            final Object[] values = new Object[types.length];
+            String[] row;
+            while ((row = rdr.readNext()) != null) {
+                if (row.length < types.length)
+                    throw new ApplyAlterException("invalid CSV: %d columns in data row %d", row.length,
+                            writer.getRows() + 1);
+                for (int i = 0; i < types.length; i++) {
+                    if (row[i].length() == 0 && types[i].isEmptyNull()) {
+                        values[i] = null;
+                        continue;
+                    }
+                    try {
+                        values[i] = types[i].parse(row[i]);
+                    } catch (IllegalArgumentException e) {
+                        throw new ApplyAlterException("invalid CSV value in data row %d, column %s: %s", e,
+                                writer.getRows() + 1, names[i], e.getMessage());
+                    }
+                }
+                writer.writeRow(values);
+            }
+            return writer.getRows();
+        } finally {
+            rdr.close();
+            if (writer != null) {
+                writer.close();
+            } else {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Command line: <code>input.csv output.bin type,type,... [charset]</code>.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("usage: CsvToBinary input.csv output.bin type[,type...] [charset]");
+            System.err.println("types: " + Arrays.toString(BinaryDatafile.Type.values()));
+            System.exit(2);
+        }
+        try {
+            final String[] typeNames = args[2].split(",");
+            final BinaryDatafile.Type[] types = new BinaryDatafile.Type[typeNames.length];
+            for (int i = 0; i < typeNames.length; i++) {
+                types[i] = BinaryDatafile.Type.forName(typeNames[i]);
+            }
+            final Charset cs = (args.length > 3) ? Charset.forName(args[3]) : Charset.defaultCharset();
+            final File input = new File(args[0]);
+            final long rows = convert(new InputStreamReader(new FileInputStream(input), cs), input.getName(), types,
+                    new BufferedOutputStream(new FileOutputStream(args[1]), 64 * 1024));
+            System.out.printf("%d rows written to %s%n", rows, args[1]);
+        } catch (Exception e) {
+            System.err.println("conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,296 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Datafiles of an alterscript, loaded lazily from the {@link AlterLoader.AlterSource}: {@link #get(Object)} reads
+ * the whole file, {@link #openStream(String)} allows to process big files without loading them to memory. Files are
+ * read through the {@link DatafileStore} of the loader (if any), so files shared by several alterscripts are read
+ * once; files too big for the store are read from the source every time.
+ * <p/>
+ * Datafiles named <code>*.gz</code> (gzip) or <code>*.zst</code> (zstd, requires zstd-jni on classpath) are
+ * decompressed on the fly by both methods; the alterscript hash is computed from the compressed bytes, as stored.
+ * Decompressed content returned by {@link #get(Object)} (LOB placeholders, see
+ * {@link AbstractStatement#prepareStatement}) is kept until {@link #releaseDecompressed()}, called after every
+ * statement: the statement may prepare the placeholders many times (e.g. parallel CSV, for every chunk).
+ *
+ * @version $Id$
+ */
+public class DatafileMap extends AbstractMap<String, byte[]> {
+    public static final String GZIP_SUFFIX = ".gz";
+    public static final String ZSTD_SUFFIX = ".zst";
+    private static final String ZSTD_STREAM_CLASS = "com.github.luben.zstd.ZstdInputStream";
+
+    private final AlterLoader.AlterSource source;
+    private final Set<String> names;
+    private final DatafileStore store;
+    /**
+     * Decompressed content of compressed datafiles, see {@link #releaseDecompressed()}.
+     */
+    private final Map<String, byte[]> decompressed = new HashMap<String, byte[]>();
+
+    public DatafileMap(AlterLoader.AlterSource source, Collection<String> names) {
+        this(source, names, null);
+    }
+
+    public DatafileMap(AlterLoader.AlterSource source, Collection<String> names, DatafileStore store) {
+        this.source = source;
+        this.names = new TreeSet<String>(names);
+        this.store = store;
+    }
+
+    /**
+     * Open datafile for reading, decompressed; caller must close the stream.
+     *
+     * @param name datafile name
+     * @return stream
+     * @throws FileNotFoundException datafile is not declared or does not exist
+     * @throws IOException           error opening the file
+     */
+    public InputStream openStream(String name)
+            throws IOException {
+        if (!names.contains(name))
+            throw new FileNotFoundException("not a datafile of this alterscript: " + name);
+        final byte[] cached = (store == null) ? null : store.get(source, name);
+        if (cached != null)
+            return decompress(new ByteArrayInputStream(cached), name);
+        final InputStream in = source.openDataFile(name);
+        if (in == null)
+            throw new FileNotFoundException("no such datafile: " + name);
+        return decompress(in, name);
+    }
+
+    /**
+     * Datafile is compressed (by the name suffix).
+     */
+    public static boolean isCompressed(String name) {
+        return name.endsWith(GZIP_SUFFIX) || name.endsWith(ZSTD_SUFFIX);
+    }
+
+    /**
+     * Wrap the stream of the datafile by decompressing stream, according to the name suffix.
+     *
+     * @param in   stream of the datafile as stored; closed on error
+     * @param name datafile name
+     * @return decompressed stream (or the original stream)
+     * @throws IOException invalid header or zstd not available
+     */
+    static InputStream decompress(InputStream in, String name)
+            throws IOException {
+        try {
+            if (name.endsWith(GZIP_SUFFIX))
+                return new GZIPInputStream(in, 64 * 1024);
+            if (name.endsWith(ZSTD_SUFFIX))
+                return openZstd(in, name);
+            return in;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+    }
+
+    /**
+     * zstd is optional: the stream is created by reflection, so the library is needed only for .zst datafiles.
+     */
+    private static InputStream openZstd(InputStream in, String name)
+            throws IOException {
+        final Class<?> cls;
+        try {
+            cls = Class.forName(ZSTD_STREAM_CLASS);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("zstd datafile " + name + " requires zstd-jni (" + ZSTD_STREAM_CLASS
+                    + ") on classpath", e);
+        }
+        try {
+            return new BufferedInputStream((InputStream) cls.getConstructor(InputStream.class).newInstance(in),
+                    64 * 1024);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("cannot open zstd datafile " + name, e.getCause());
+        } catch (Exception e) {
+            throw new IOException("cannot open zstd datafile " + name, e);
+        }
+    }
+
+    /**
+     * Open datafile from any datafile map: streaming for {@link DatafileMap}, byte array otherwise (decompressed in
+     * both cases).
+     *
+     * @return stream, null if there is no such datafile
+     */
+    public static InputStream openStream(Map<String, byte[]> datafiles, String name)
+            throws IOException {
+        if (datafiles == null || !datafiles.containsKey(name))
+            return null;
+        if (datafiles instanceof DatafileMap)
+            return ((DatafileMap) datafiles).openStream(name);
+        return decompress(new ByteArrayInputStream(datafiles.get(name)), name);
+    }
+
+    /**
+     * Datafile content as buffer: files on the filesystem are memory-mapped (read only), others (archives, URLs) and
+     * compressed files are loaded to memory (decompressed).
+     *
+     * @param name datafile name
+     * @return buffer positioned at the start of the file
+     * @throws FileNotFoundException datafile is not declared or does not exist
+     * @throws IOException           error mapping the file, or the file is bigger than 2 GB
+     */
+    public ByteBuffer map(String name)
+            throws IOException {
+        if (!names.contains(name))
+            throw new FileNotFoundException("not a datafile of this alterscript: " + name);
+        if (!(source instanceof AlterLoader.FileSource) || isCompressed(name))
+            return ByteBuffer.wrap(get(name));
+        final File file = ((AlterLoader.FileSource) source).getDataFile(name);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("datafile too big to be mapped (max 2 GB): " + name);
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Datafile content from any datafile map: mapped for {@link DatafileMap}, byte array otherwise.
+     *
+     * @return buffer, null if there is no such datafile
+     */
+    public static ByteBuffer map(Map<String, byte[]> datafiles, String name)
+            throws IOException {
+        if (datafiles == null || !datafiles.containsKey(name))
+            return null;
+        if (datafiles instanceof DatafileMap)
+            return ((DatafileMap) datafiles).map(name);
+        if (isCompressed(name))
+            return ByteBuffer.wrap(IOUtils.toByteArray(openStream(datafiles, name)));
+        return ByteBuffer.wrap(datafiles.get(name));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return names.contains(key);
+    }
+
+    /**
+     * Load the whole datafile (decompressed). The array can be shared with other alterscripts (see
+     * {@link DatafileStore}) and must not be modified.
+     *
+     * @return file content, null if there is no such datafile
+     * @throws ApplyAlterException error reading the file
+     */
+    @Override
+    public byte[] get(Object key) {
+        if (!names.contains(key))
+            return null;
+        final String name = (String) key;
+        if (!isCompressed(name))
+            return load(name);
+        //parallel sessions wait for the first one instead of decompressing too
+        synchronized (decompressed) {
+            byte[] data = decompressed.get(name);
+            if (data == null) {
+                data = load(name);
+                decompressed.put(name, data);
+            }
+            return data;
+        }
+    }
+
+    private byte[] load(String name) {
+        InputStream in = null;
+        try {
+            if (store != null && !isCompressed(name)) {
+                final byte[] cached = store.get(source, name);
+                if (cached != null)
+                    return cached;
+            }
+            in = openStream(name);
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new ApplyAlterException("error reading datafile: " + name, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Release the decompressed content kept by {@link #get(Object)}; called when the statement has finished.
+     */
+    public void releaseDecompressed() {
+        synchronized (decompressed) {
+            decompressed.clear();
+        }
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return names;
+    }
+
+    /**
+     * Entries load the file in {@link Entry#getValue()}.
+     */
+    @Override
+    public Set<Entry<String, byte[]>> entrySet() {
+        return new AbstractSet<Entry<String, byte[]>>() {
+            @Override
+            public Iterator<Entry<String, byte[]>> iterator() {
+                final Iterator<String> it = names.iterator();
+                return new Iterator<Entry<String, byte[]>>() {
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    public Entry<String, byte[]> next() {
+                        final String name = it.next();
+                        return new AbstractMap.SimpleImmutableEntry<String, byte[]>(name, null) {
+                            @Override
+                            public byte[] getValue() {
+                                return get(name);
+                            }
+                        };
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return names.size();
+            }
+        };
+    }
+
+}
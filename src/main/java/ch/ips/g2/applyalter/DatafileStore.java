@@ -0,0 +1,256 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of datafiles, shared by all alterscripts loaded by one {@link AlterLoader}: datafile
+ * location (see {@link AlterLoader.AlterSource#getDataFileKey(String)}) is mapped to SHA-1 of its content, and the
+ * content is stored by the digest. The same file referenced by several alterscripts is read once, and the same content
+ * under different names is held in memory once.
+ * <p/>
+ * Content is kept as stored (compressed datafiles are not decompressed) and evicted in LRU order to stay within
+ * the memory budget; files bigger than quarter of the budget are never cached and are streamed by the callers
+ * instead. The digest is computed while streaming and remembered per location even for those, together with size and
+ * modification time of the file (filesystem sources only), so a known big file is not read again by the store;
+ * a changed file is read again. The arrays are shared: callers must not modify them. Thread safe.
+ * <p/>
+ * Note that the hash of an alterscript (see {@link #update}) is defined over the content of its datafiles, not over
+ * their digests, so a big datafile is still streamed once for every alterscript using it.
+ *
+ * @version $Id$
+ */
+public class DatafileStore {
+    /**
+     * System property with the memory budget in megabytes; 0 disables the cache.
+     */
+    public static final String BUDGET_PROPERTY = "applyalter.datafile.budget";
+    public static final long DEFAULT_BUDGET_MB = 64;
+
+    private final long budget;
+    private final long maxEntry;
+    /**
+     * Location key to content digest.
+     */
+    private final Map<String, Location> locations = new HashMap<String, Location>();
+    /**
+     * Content digest to content, in access order.
+     */
+    private final LinkedHashMap<String, byte[]> payloads = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long used;
+    private int hits;
+    private int loads;
+    private int shared;
+    private int evicted;
+
+    /**
+     * Known datafile location.
+     */
+    private static class Location {
+        /**
+         * SHA-1 of the content; null if the file has not been read completely.
+         */
+        final String digest;
+        /**
+         * Is the file bigger than {@link DatafileStore#maxEntry}?
+         */
+        final boolean tooBig;
+        final long size;
+        final long modified;
+
+        Location(String digest, boolean tooBig, File file) {
+            this.digest = digest;
+            this.tooBig = tooBig;
+            this.size = (file == null) ? -1 : file.length();
+            this.modified = (file == null) ? -1 : file.lastModified();
+        }
+
+        /**
+         * Is the file unchanged? Files of other sources than the filesystem are not supposed to change.
+         */
+        boolean isCurrent(File file) {
+            return file == null || (file.length() == size && file.lastModified() == modified);
+        }
+    }
+
+    /**
+     * Create store.
+     *
+     * @param budget memory budget in bytes; 0 disables the cache
+     */
+    public DatafileStore(long budget) {
+        this.budget = budget;
+        this.maxEntry = budget / 4;
+    }
+
+    /**
+     * Create store with the budget from system property {@link #BUDGET_PROPERTY}.
+     */
+    public static DatafileStore fromProperty() {
+        final String p = System.getProperty(BUDGET_PROPERTY);
+        long mb = DEFAULT_BUDGET_MB;
+        if (p != null && p.trim().length() > 0) {
+            try {
+                mb = Long.parseLong(p.trim());
+            } catch (NumberFormatException e) {
+                throw new ApplyAlterException("invalid value of %s (megabytes expected): %s", e, BUDGET_PROPERTY, p);
+            }
+        }
+        return new DatafileStore(mb * 1024 * 1024);
+    }
+
+    /**
+     * Content of the datafile as stored.
+     *
+     * @param source   alterscript source
+     * @param filename datafile name
+     * @return content (shared, must not be modified); null if the file is not cacheable (too big or unknown location),
+     *         caller has to read it from the source
+     * @throws FileNotFoundException no such file
+     * @throws IOException           error reading the file
+     */
+    public synchronized byte[] get(AlterLoader.AlterSource source, String filename)
+            throws IOException {
+        if (budget <= 0)
+            return null;
+        final String key = source.getDataFileKey(filename);
+        if (key == null)
+            return null;
+        return load(source, filename, key, null);
+    }
+
+    /**
+     * Feed the content of the datafile to the hash of the alterscript; the file is read at most once, cached if
+     * possible and its digest is remembered.
+     *
+     * @param source   alterscript source
+     * @param filename datafile name
+     * @param hash     hash to update
+     * @return false if the location is unknown: nothing has been read, caller has to stream the file itself
+     * @throws FileNotFoundException no such file
+     * @throws IOException           error reading the file
+     */
+    public synchronized boolean update(AlterLoader.AlterSource source, String filename, MessageDigest hash)
+            throws IOException {
+        final String key = source.getDataFileKey(filename);
+        if (key == null)
+            return false;
+        load(source, filename, key, hash);
+        return true;
+    }
+
+    /**
+     * Cached content, or read the file.
+     *
+     * @param hash updated by the content when not null; the file is read completely then, even if too big
+     * @return content, null if too big
+     */
+    private byte[] load(AlterLoader.AlterSource source, String filename, String key, MessageDigest hash)
+            throws IOException {
+        final File file = (source instanceof AlterLoader.FileSource)
+                ? ((AlterLoader.FileSource) source).getDataFile(filename) : null;
+        final Location location = locations.get(key);
+        if (location != null && location.isCurrent(file)) {
+            if (location.digest != null) {
+                final byte[] data = payloads.get(location.digest);
+                if (data != null) {
+                    hits++;
+                    if (hash != null)
+                        hash.update(data);
+                    return data;
+                }
+            }
+            if (location.tooBig && hash == null)
+                return null;
+        }
+
+        loads++;
+        final MessageDigest content = newDigest();
+        final InputStream in = source.openDataFile(filename);
+        if (in == null)
+            throw new FileNotFoundException(filename);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        boolean complete = true;
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                content.update(buffer, 0, n);
+                if (hash != null)
+                    hash.update(buffer, 0, n);
+                size += n;
+                if (out != null && size > maxEntry) {
+                    out = null;
+                    if (hash == null) {
+                        //nobody needs the rest
+                        complete = false;
+                        break;
+                    }
+                }
+                if (out != null)
+                    out.write(buffer, 0, n);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        final String digest = complete ? AlterLoader.bytes2hex(content.digest()) : null;
+        locations.put(key, new Location(digest, out == null, file));
+        if (out == null)
+            return null;
+        final byte[] existing = payloads.get(digest);
+        if (existing != null) {
+            //same content under other name
+            shared++;
+            return existing;
+        }
+        final byte[] data = out.toByteArray();
+        payloads.put(digest, data);
+        used += data.length;
+        evict();
+        return data;
+    }
+
+    private void evict() {
+        final Iterator<byte[]> it = payloads.values().iterator();
+        while (used > budget && it.hasNext()) {
+            used -= it.next().length;
+            it.remove();
+            evicted++;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new ApplyAlterException("SHA-1 not supported", e);
+        }
+    }
+
+    /**
+     * Bytes currently held.
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("datafile store: %d files read, %d cache hits, %d shared by content, %d evicted,"
+                + " %d kB of %d kB used", loads, hits, shared, evicted, used / 1024, budget / 1024);
+    }
+
+}
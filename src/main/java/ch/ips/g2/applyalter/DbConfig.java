@@ -3,8 +3,10 @@ package ch.ips.g2.applyalter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -12,6 +14,7 @@ import java.util.Set;
  * Databases configuration with method applied to all (or used) database instances.
  * Database istances with null {@link DbInstance#getHost()} are skipped in constructor and never included
  * in {@link #instances}; they are, however, inclused in {@link #knownDbTypes}.
+ * Replicas (see {@link DbInstance#getReplicaof()}) are not included either, they are attached to their master.
  *
  * @author Martin Caslavsky &lt;martin.caslavsky@ips-ag.cz&gt;
  * @version $Id$
@@ -20,6 +23,7 @@ import java.util.Set;
 public class DbConfig {
     protected String environment;
     protected final List<DbInstance> instances;
+    protected final List<DbInstance> replicas;
     protected final Set<String> knownDbTypes;
 
     /**
@@ -34,16 +38,31 @@ public class DbConfig {
 
     public DbConfig(List<DbInstance> configuredDatabases, boolean ignorefailures, RunContext ctx) {
         this.instances = new ArrayList<DbInstance>();
+        this.replicas = new ArrayList<DbInstance>();
         this.knownDbTypes = new HashSet<String>();
+        final Map<String, DbInstance> byId = new HashMap<String, DbInstance>();
         for (DbInstance instance : configuredDatabases) {
+            if (instance.getReplicaof() != null) {
+                //replicas are connected only when needed
+                replicas.add(instance);
+                continue;
+            }
             if (instance.getType() != null) {
                 knownDbTypes.add(instance.getType());
             }
             if (instance.isReal()) {
                 instances.add(instance);
+                byId.put(instance.getId(), instance);
                 instance.getConnection(ctx);
             }
         }
+        for (DbInstance replica : replicas) {
+            DbInstance master = byId.get(replica.getReplicaof());
+            if (master == null)
+                throw new ApplyAlterException("replica %s: unknown master instance %s", replica.getId(),
+                        replica.getReplicaof());
+            master.getReplicas().add(replica);
+        }
         this.ignorefailures = ignorefailures;
     }
 
@@ -70,6 +89,9 @@ public class DbConfig {
         for (DbInstance i : instances) {
             i.closeConnection();
         }
+        for (DbInstance i : replicas) {
+            i.closeConnection();
+        }
     }
 
     /**
@@ -3,6 +3,8 @@ package ch.ips.g2.applyalter;
 import com.thoughtworks.xstream.annotations.XStreamOmitField;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,10 +25,36 @@ public abstract class DbInstance {
     public String db;
     public String user;
     public String pass;
+    /**
+     * Replica: id of the master instance. Replicas are never altered, they are used only by lag probes.
+     */
+    public String replicaof;
     @XStreamOmitField
     protected Connection con;
     @XStreamOmitField
     protected boolean used;
+    /**
+     * Schema set by {@link #setSchema(String)}, applied also to sessions from {@link #openSession(RunContext)}.
+     */
+    @XStreamOmitField
+    protected String currentSchema;
+    /**
+     * Isolation set by {@link #setIsolation(IsolationLevel)}, applied also to sessions.
+     */
+    @XStreamOmitField
+    protected IsolationLevel currentIsolation;
+    /**
+     * Replicas of this instance, filled by {@link DbConfig}.
+     */
+    @XStreamOmitField
+    protected List<DbInstance> replicas;
+    /**
+     * Alter being applied, see {@link #setCurrentAlter(String, boolean)}.
+     */
+    @XStreamOmitField
+    protected String currentAlterId;
+    @XStreamOmitField
+    protected boolean logTableUsed;
 
     public DbInstance() {
         super();
@@ -74,6 +102,25 @@ public abstract class DbInstance {
      * @throws ApplyAlterException if schema can not be set
      */
     public void setSchema(String schema) throws ApplyAlterException {
+        this.currentSchema = schema;
+        setSchema(con, schema);
+    }
+
+    /**
+     * Current schema, as set by {@link #setSchema(String)}.
+     */
+    public String getSchema() {
+        return currentSchema;
+    }
+
+    /**
+     * Change database schema on the connection: either the main one, or parallel session.
+     *
+     * @param con    connection to change
+     * @param schema schema name to set
+     * @throws ApplyAlterException if schema can not be set
+     */
+    protected void setSchema(Connection con, String schema) throws ApplyAlterException {
         //important: DB2 requires uppercase schema!
         schema = schema.toUpperCase();
 
@@ -96,6 +143,12 @@ public abstract class DbInstance {
      */
     public void setIsolation(IsolationLevel isolation)
             throws ApplyAlterException {
+        this.currentIsolation = isolation;
+        setIsolation(con, isolation);
+    }
+
+    private void setIsolation(Connection con, IsolationLevel isolation)
+            throws ApplyAlterException {
         if (isolation == null)
             return;
 
@@ -156,6 +209,35 @@ public abstract class DbInstance {
         return c;
     }
 
+    /**
+     * Open additional session to this database instance, for statements executed by several connections
+     * in parallel. The session has auto commit turned off and the same schema and isolation level
+     * as the main connection. Caller is responsible for closing it.
+     *
+     * @param ctx run context
+     * @return new connection, not related to {@link #getConnection(RunContext)}
+     * @throws ApplyAlterException if connection could not be acquired
+     */
+    public Connection openSession(RunContext ctx) throws ApplyAlterException {
+        String url = getUrl();
+        final Connection session;
+        try {
+            session = connect(url, ctx);
+            session.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("Can not acquire db connection for " + url, e);
+        }
+        try {
+            if (currentSchema != null)
+                setSchema(session, currentSchema);
+            setIsolation(session, currentIsolation);
+        } catch (ApplyAlterException e) {
+            DbUtils.close(session);
+            throw e;
+        }
+        return session;
+    }
+
     /**
      * Close connection
      */
@@ -238,6 +320,25 @@ public abstract class DbInstance {
         this.pass = pass;
     }
 
+    public String getReplicaof() {
+        return replicaof;
+    }
+
+    public void setReplicaof(String replicaof) {
+        this.replicaof = replicaof;
+    }
+
+    /**
+     * Replicas of this instance (instances with {@link #getReplicaof()} equal to id of this one).
+     *
+     * @return list of replicas, never null
+     */
+    public List<DbInstance> getReplicas() {
+        if (replicas == null)
+            replicas = new ArrayList<DbInstance>();
+        return replicas;
+    }
+
 
     /**
      * Is this database connect valid, non-fake?
@@ -252,6 +353,360 @@ public abstract class DbInstance {
         return "wasg2.applyalter_log";
     }
 
+    public String getBatchLogTable() {
+        return "wasg2.applyalter_batch_log";
+    }
+
+    public String getCsvRowsTable() {
+        return "wasg2.applyalter_csv_rows";
+    }
+
+    public String getBulkRestoreTable() {
+        return "wasg2.applyalter_bulk_restore";
+    }
+
+    /**
+     * Set the alter being applied; used by statements that log their progress (see {@link BatchLog}).
+     *
+     * @param alterId      id of the alterscript
+     * @param logTableUsed are the log tables available?
+     */
+    public void setCurrentAlter(String alterId, boolean logTableUsed) {
+        this.currentAlterId = alterId;
+        this.logTableUsed = logTableUsed;
+    }
+
+    public String getCurrentAlterId() {
+        return currentAlterId;
+    }
+
+    public boolean isLogTableUsed() {
+        return logTableUsed;
+    }
+
+    //--------------------------------------------------------------------------------------------------
+
+    private static final String SQL_DB2_CREATE_TEMPORARY_TABLE =
+            "DECLARE GLOBAL TEMPORARY TABLE %s AS (%s) DEFINITION ONLY " +
+                    " on commit preserve rows" +
+                    " NOT LOGGED on rollback delete rows" +
+                    " WITH REPLACE";
+
+    /**
+     * Full name of temporary table. Default implementation is for DB2 (declared temporary tables are always
+     * in schema SESSION).
+     *
+     * @param baseName table name without schema
+     * @return table name to use in queries
+     */
+    public String makeTempTableName(String baseName) {
+        return "session." + baseName;
+    }
+
+    /**
+     * Create temporary table with columns of the query (but without rows) and index; existing table of the same
+     * name is replaced. The table must survive commits. Default implementation is for DB2: declared global
+     * temporary table, not logged.
+     *
+     * @param ctx          run context, used for logging
+     * @param con          connection
+     * @param baseName     table name without schema
+     * @param query        query defining the columns
+     * @param indexColumns columns of the index, null for no index
+     * @return table name, see {@link #makeTempTableName(String)}
+     * @throws SQLException error creating the table
+     */
+    public String createTempTable(RunContext ctx, Connection con, String baseName, String query, String indexColumns)
+            throws SQLException {
+        final String tableName = makeTempTableName(baseName);
+        String sql = String.format(SQL_DB2_CREATE_TEMPORARY_TABLE, tableName, query);
+        ctx.report(ReportLevel.DETAIL, "creating temporary table by query: %s", sql);
+        DbUtils.executeUpdate(con, sql);
+
+        //important: create index
+        if (indexColumns != null) {
+            String indexSql = String.format("create index %1$s_IDX on %1$s (%2$s)", tableName, indexColumns);
+            ctx.report(ReportLevel.DETAIL, "  creating index: %s", indexSql);
+            DbUtils.executeUpdate(con, indexSql);
+        }
+        return tableName;
+    }
+
+    /**
+     * Does creating (or dropping) temporary table commit the transaction? Then the temporary table is a schema object
+     * shared by concurrent sessions too. Default implementation is for DB2: declared temporary table is private to the
+     * session and its declaration is not committed.
+     */
+    public boolean isTempTableCommitting() {
+        return false;
+    }
+
+    /**
+     * Base name of temporary table that must not collide with tables of concurrent sessions, see
+     * {@link #isTempTableCommitting()}. Default implementation returns the base name unchanged.
+     *
+     * @param con      connection
+     * @param baseName table name without schema
+     * @return base name for {@link #createTempTable(RunContext, Connection, String, String, String)}
+     * @throws SQLException error getting session identification
+     */
+    public String makeSessionTempTableName(Connection con, String baseName)
+            throws SQLException {
+        return baseName;
+    }
+
+    /**
+     * Called when the temporary table has been filled: update optimizer statistics, if the database needs it.
+     * Default implementation does nothing (DB2 uses real cardinality of declared temporary tables).
+     *
+     * @param ctx       run context, used for logging
+     * @param con       connection
+     * @param tableName table name, as returned by {@link #createTempTable}
+     * @throws SQLException error
+     */
+    public void analyzeTempTable(RunContext ctx, Connection con, String tableName)
+            throws SQLException {
+    }
+
+    /**
+     * Remove temporary table that is not needed anymore. Default implementation does nothing: DB2 temporary
+     * tables disappear with the session (and they are replaced when declared again).
+     *
+     * @param ctx       run context, used for logging
+     * @param con       connection
+     * @param tableName table name, as returned by {@link #createTempTable}
+     */
+    public void dropTempTable(RunContext ctx, Connection con, String tableName) {
+    }
+
+    /**
+     * Limit the query to the first rows. Default implementation uses standard <code>fetch first</code> clause
+     * (DB2, PostgreSQL).
+     *
+     * @param query query, might contain <code>order by</code>
+     * @param rows  maximum number of rows
+     * @return the limited query
+     */
+    public String limitRows(String query, long rows) {
+        return String.format("%s fetch first %d rows only", query, rows);
+    }
+
+    /**
+     * Built-in query for replication lag, executed on this (master) instance: single row, lag in seconds.
+     * Default implementation is for DB2 HADR.
+     *
+     * @return query, null if not supported
+     */
+    public String getReplicationLagQuery() {
+        return "select coalesce(max(timestampdiff(2, char(primary_log_time - standby_replay_log_time))), 0)"
+                + " from table(mon_get_hadr(null)) hadr";
+    }
+
+    /**
+     * Maximum number of IDs bound to one ID list expression, see {@link #makeIdListExpression(int)}.
+     * Default (DB2) is limited by the statement size.
+     */
+    public int getMaxIdListSize() {
+        return 10000;
+    }
+
+    /**
+     * Expression with parameters for the list of numeric IDs, usable after <code>IN</code>. Default implementation
+     * is plain list of parameters, <code>(?, ?, ?)</code>: the statement depends on the size.
+     *
+     * @param size number of IDs
+     * @return expression
+     */
+    public String makeIdListExpression(int size) {
+        StringBuilder b = new StringBuilder(size * 3 + 2).append('(');
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append('?');
+        }
+        return b.append(')').toString();
+    }
+
+    /**
+     * Bind IDs to the expression made by {@link #makeIdListExpression(int)}. When there are less IDs than the size
+     * of the expression (last batch), the list is padded by the last ID.
+     *
+     * @param con      connection
+     * @param st       statement
+     * @param paramIdx index of the first parameter
+     * @param ids      IDs
+     * @param from     first ID in the array
+     * @param count    number of IDs, at least one
+     * @param size     size of the expression
+     * @return next parameter index
+     * @throws SQLException error binding the parameters
+     */
+    public int bindIdList(Connection con, PreparedStatement st, int paramIdx, long[] ids, int from, int count,
+                          int size)
+            throws SQLException {
+        for (int i = 0; i < size; i++) {
+            st.setLong(paramIdx++, ids[from + Math.min(i, count - 1)]);
+        }
+        return paramIdx;
+    }
+
+    /**
+     * Maximum number of parameters of one statement (multi-row insert is limited by this).
+     * Default is the DB2 and PostgreSQL limit.
+     */
+    public int getMaxStatementParameters() {
+        return 32767;
+    }
+
+    /**
+     * Insert of several rows by one statement. Default implementation uses standard multi-row
+     * <code>VALUES (...), (...)</code> (DB2, PostgreSQL).
+     *
+     * @param target table with optional column list: <code>t (a, b)</code>
+     * @param tuple  values of one row, without the parentheses: <code>?, ?</code>
+     * @param rows   number of rows
+     * @return the statement
+     */
+    public String makeMultiRowInsert(String target, String tuple, int rows) {
+        StringBuilder b = new StringBuilder(target.length() + rows * (tuple.length() + 4) + 20);
+        b.append("insert into ").append(target).append(" values ");
+        for (int i = 0; i < rows; i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append('(').append(tuple).append(')');
+        }
+        return b.toString();
+    }
+
+    /**
+     * Upsert of all rows of the source table into the target: rows with existing key are updated, others inserted.
+     * Default implementation is standard <code>MERGE</code> (DB2, Oracle).
+     *
+     * @param target  target table
+     * @param source  source table with the same columns
+     * @param columns all columns
+     * @param keys    key columns (subset of columns)
+     * @return the statement
+     */
+    public String makeMergeSql(String target, String source, List<String> columns, List<String> keys) {
+        StringBuilder b = new StringBuilder("merge into ").append(target).append(" t using (select ");
+        appendList(b, "", columns);
+        b.append(" from ").append(source).append(") s on (");
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0)
+                b.append(" and ");
+            b.append("t.").append(keys.get(i)).append(" = s.").append(keys.get(i));
+        }
+        b.append(')');
+        String separator = " when matched then update set ";
+        for (String column : columns) {
+            if (!keys.contains(column)) {
+                b.append(separator).append(column).append(" = s.").append(column);
+                separator = ", ";
+            }
+        }
+        b.append(" when not matched then insert (");
+        appendList(b, "", columns);
+        b.append(") values (");
+        appendList(b, "s.", columns);
+        return b.append(')').toString();
+    }
+
+    /**
+     * Bulk load preparation: drop the index and rebuild it afterwards. Default implementation is for DB2: the index
+     * is recreated from the catalog (columns, order, uniqueness and include columns; other attributes are lost).
+     *
+     * @param con    connection
+     * @param schema current schema, used for unqualified name
+     * @param index  index name, optionally with schema
+     * @return the change
+     * @throws SQLException        database error
+     * @throws ApplyAlterException index not found or cannot be dropped
+     */
+    public BulkPrepare.Change makeIndexRebuild(Connection con, String schema, String index)
+            throws SQLException {
+        final int dot = index.indexOf('.');
+        final String indSchema = (dot > 0 ? index.substring(0, dot) : schema).trim().toUpperCase();
+        final String indName = index.substring(dot + 1).trim().toUpperCase();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select i.uniquerule, i.tabschema, i.tabname, c.colname, c.colorder"
+                    + " from syscat.indexes i join syscat.indexcoluse c"
+                    + " on c.indschema = i.indschema and c.indname = i.indname"
+                    + " where i.indschema = ? and i.indname = ? order by c.colseq");
+            st.setString(1, indSchema);
+            st.setString(2, indName);
+            rs = st.executeQuery();
+            String create = null;
+            final StringBuilder columns = new StringBuilder();
+            final StringBuilder include = new StringBuilder();
+            while (rs.next()) {
+                if (create == null) {
+                    final String rule = rs.getString(1);
+                    if ("P".equals(rule))
+                        throw new ApplyAlterException("bulk-prepare: %s is primary key index", index);
+                    create = String.format("create %sindex \"%s\".\"%s\" on \"%s\".\"%s\"",
+                            "U".equals(rule) ? "unique " : "", indSchema, indName,
+                            rs.getString(2).trim(), rs.getString(3).trim());
+                }
+                final String order = rs.getString(5);
+                final StringBuilder target = "I".equals(order) ? include : columns;
+                if (target.length() > 0)
+                    target.append(", ");
+                target.append('"').append(rs.getString(4)).append('"');
+                if ("D".equals(order))
+                    target.append(" desc");
+            }
+            if (create == null)
+                throw new ApplyAlterException("bulk-prepare: index %s.%s not found", indSchema, indName);
+            String restore = create + " (" + columns + ")";
+            if (include.length() > 0)
+                restore += " include (" + include + ")";
+            return new BulkPrepare.Change(BulkPrepare.PHASE_PARALLEL)
+                    .apply(String.format("drop index \"%s\".\"%s\"", indSchema, indName))
+                    .restore(restore);
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Bulk load preparation: switch off the foreign key and validate it afterwards.
+     * Default implementation is for DB2: <code>NOT ENFORCED</code>, then <code>ENFORCED</code>.
+     *
+     * @param con   connection
+     * @param table table of the foreign key
+     * @param name  constraint name
+     * @return the change
+     * @throws SQLException database error
+     */
+    public BulkPrepare.Change makeForeignKeyBypass(Connection con, String table, String name)
+            throws SQLException {
+        return new BulkPrepare.Change(BulkPrepare.PHASE_SERIAL)
+                .apply(String.format("alter table %s alter foreign key %s not enforced", table, name))
+                .restore(String.format("alter table %s alter foreign key %s enforced", table, name));
+    }
+
+    /**
+     * Bulk load preparation: switch off logging of the table. Default implementation (DB2) returns null: NOT LOGGED
+     * INITIALLY is valid only until the end of unit of work, which does not fit loads committed by steps.
+     *
+     * @param table the table
+     * @return the change, null if not supported
+     */
+    public BulkPrepare.Change makeUnlogged(String table) {
+        return null;
+    }
+
+    protected static void appendList(StringBuilder b, String prefix, List<String> items) {
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append(prefix).append(items.get(i));
+        }
+    }
+
     //--------------------------------------------------------------------------------------------------
 
     protected static final String[] MDTYPES_TABLE = {"TABLE", "ALIAS"};
@@ -44,6 +44,22 @@ public class DbUtils {
         close(stmt);
     }
 
+    /**
+     * Close connection, do nothing if it's not open.
+     * No exception is thrown, ever; this method is thus safe to use inside finally clause.
+     *
+     * @param con connection to close, null is handled (nothing is done in such case)
+     */
+    public static void close(Connection con) {
+        if (con == null)
+            return;
+        try {
+            con.close();
+        } catch (SQLException e) {
+            //ignore
+        }
+    }
+
     /**
      * Execute simple update query.
      * Remember that this method does not support NULL values, because there is no way to pass type of such NULL
@@ -0,0 +1,257 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Export of query result to file, streamed with the given fetch size: unlike {@link SelectQuery}, rows are never
+ * reported, just the row count and throughput. Formats:
+ * <ul>
+ * <li>{@link Format#csv}: UTF-8 CSV with header, values formatted to be loaded back by {@link CSV}. NULL is written
+ * as unquoted empty field, values are quoted (PostgreSQL COPY CSV convention); however, {@link CSV} does not
+ * distinguish them, so NULL of a string column is loaded back as empty string (reported by the export)</li>
+ * <li>{@link Format#binary}: {@link BinaryDatafile}, to be loaded back by {@link BinLoad}</li>
+ * </ul>
+ * The file is written to temporary file <code>file.tmp</code> and renamed when complete; relative name is relative to
+ * the working directory. Export runs in all modes except {@link RunMode#PRINT}: it sees the uncommitted changes of
+ * the alter.
+ *
+ * @version $Id$
+ */
+@XStreamAlias("export")
+public class Export extends AbstractStatement {
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    @XStreamAsAttribute
+    protected String file;
+    @XStreamAsAttribute
+    protected Format format;
+    @XStreamAsAttribute
+    protected Compression compress;
+    @XStreamAsAttribute
+    protected Integer fetchsize;
+
+    public enum Format {
+        csv, binary
+    }
+
+    public enum Compression {
+        gz
+    }
+
+    public Export() {
+        super();
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public void setFile(String file) {
+        this.file = file;
+    }
+
+    /**
+     * Output format, {@link Format#csv} if not specified.
+     */
+    public Format getFormat() {
+        return (format == null) ? Format.csv : format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Compression of the output, none if not specified.
+     */
+    public Compression getCompress() {
+        return compress;
+    }
+
+    public void setCompress(Compression compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * JDBC fetch size, {@link #DEFAULT_FETCH_SIZE} if not specified.
+     */
+    public int getFetchsize() {
+        return (fetchsize == null) ? DEFAULT_FETCH_SIZE : fetchsize.intValue();
+    }
+
+    public void setFetchsize(Integer fetchsize) {
+        this.fetchsize = fetchsize;
+    }
+
+    public String getSqlStatement() {
+        return getStatement();
+    }
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        if (file == null || file.trim().length() < 1)
+            throw new ApplyAlterException("invalid apply script: export requires \"file\"");
+        final File target = new File(file.trim());
+        final File tmp = new File(target.getPath() + ".tmp");
+
+        final Connection connection = dbConn.getConnection(ctx);
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        OutputStream out = null;
+        boolean done = false;
+        try {
+            st = prepareStatement(connection, getSqlStatement().trim(), datafiles, 0);
+            st.setFetchSize(getFetchsize());
+            final long start = System.currentTimeMillis();
+            rs = st.executeQuery();
+
+            final ResultSetMetaData meta = rs.getMetaData();
+            final String[] names = new String[meta.getColumnCount()];
+            final BinaryDatafile.Type[] types = new BinaryDatafile.Type[names.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = meta.getColumnLabel(i + 1);
+                types[i] = BinaryDatafile.Type.forSqlType(meta.getColumnType(i + 1));
+                if (types[i] == null)
+                    throw new ApplyAlterException("unsupported type in export: %s (column %s)",
+                            meta.getColumnTypeName(i + 1), names[i]);
+            }
+
+            out = new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024);
+            if (compress == Compression.gz) {
+                out = new GZIPOutputStream(out, 64 * 1024);
+            }
+            final long rows = (getFormat() == Format.binary) ? writeBinary(ctx, rs, names, types, out)
+                    : writeCsv(ctx, rs, names, types, out);
+            out.close();
+            out = null;
+
+            if (target.exists() && !target.delete())
+                throw new ApplyAlterException("cannot replace export file " + target);
+            if (!tmp.renameTo(target))
+                throw new ApplyAlterException("cannot rename %s to %s", tmp, target);
+            done = true;
+
+            final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            ctx.report(ReportLevel.STATEMENT_STEP, "exported %d rows to %s (%d kB) in %s, %.0f rows/s", rows,
+                    target, target.length() / 1024, ProgressTracker.formatDuration(elapsed / 1000),
+                    rows * 1000.0 / elapsed);
+        } catch (IOException e) {
+            throw new ApplyAlterException("error writing export file " + tmp, e);
+        } finally {
+            DbUtils.close(st, rs);
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //ignore, the original error is more important
+                }
+            }
+            if (!done) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private long writeCsv(RunContext ctx, ResultSet rs, String[] names, BinaryDatafile.Type[] types,
+                          OutputStream out)
+            throws SQLException, IOException {
+        //not opencsv CSVWriter: its PrintWriter would hide write errors
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+        final String[] row = new String[types.length];
+        final long[] stringNulls = new long[types.length];
+        writeCsvRow(writer, names);
+        long rows = 0;
+        long lastReport = System.currentTimeMillis();
+        while (rs.next()) {
+            for (int i = 0; i < types.length; i++) {
+                final Object value = types[i].fetch(rs, i + 1);
+                row[i] = (value == null) ? null : types[i].format(value);
+                if (value == null && !types[i].isEmptyNull())
+                    stringNulls[i]++;
+            }
+            writeCsvRow(writer, row);
+            rows++;
+            lastReport = reportProgress(ctx, rows, lastReport);
+        }
+        //flushes the underlying stream too, it is closed by the caller
+        writer.flush();
+        for (int i = 0; i < types.length; i++) {
+            if (stringNulls[i] > 0)
+                ctx.report(ReportLevel.STATEMENT_STEP, "column %s: %d NULL values, loaded back by CSV as empty "
+                        + "strings (use binary format to keep them)", names[i], stringNulls[i]);
+        }
+        return rows;
+    }
+
+    /**
+     * Write CSV line; all values are quoted, null is written as unquoted empty field.
+     */
+    static void writeCsvRow(Writer writer, String[] row)
+            throws IOException {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0)
+                writer.write(',');
+            final String value = row[i];
+            if (value == null)
+                continue;
+            writer.write('"');
+            for (int j = 0; j < value.length(); j++) {
+                final char c = value.charAt(j);
+                if (c == '"')
+                    writer.write('"');
+                writer.write(c);
+            }
+            writer.write('"');
+        }
+        writer.write('\n');
+    }
+
+    private long writeBinary(RunContext ctx, ResultSet rs, String[] names, BinaryDatafile.Type[] types,
+                             OutputStream out)
+            throws SQLException, IOException {
+        final BinaryDatafile.Writer writer = new BinaryDatafile.Writer(out, names, types);
+        final Object[] row = new Object[types.length];
+        long lastReport = System.currentTimeMillis();
+        while (rs.next()) {
+            for (int i = 0; i < types.length; i++) {
+                row[i] = types[i].fetch(rs, i + 1);
+            }
+            writer.writeRow(row);
+            lastReport = reportProgress(ctx, writer.getRows(), lastReport);
+        }
+        return writer.getRows();
+    }
+
+    /**
+     * Report row count every {@link ProgressTracker#REPORT_INTERVAL_MS}.
+     *
+     * @return time of the last report
+     */
+    private long reportProgress(RunContext ctx, long rows, long lastReport) {
+        if ((rows % getFetchsize()) != 0)
+            return lastReport;
+        final long now = System.currentTimeMillis();
+        if (now - lastReport < ProgressTracker.REPORT_INTERVAL_MS)
+            return lastReport;
+        ctx.report(ReportLevel.STATEMENT_STEP, " exported %d rows so far", rows);
+        return now;
+    }
+
+}
@@ -0,0 +1,51 @@
+package ch.ips.g2.applyalter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of the runtime MBeans (throttle, progress) to the platform MBean server. Failures are just reported:
+ * the statement runs anyway, only without the JMX interface.
+ *
+ * @version $Id$
+ */
+public class JmxSupport {
+
+    private JmxSupport() {
+    }
+
+    /**
+     * Register MBean, replacing the bean of the previous statement.
+     *
+     * @return registered name, null on failure
+     */
+    public static ObjectName register(RunContext ctx, Object mbean, String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            ctx.report(ReportLevel.ERROR, "failed to register %s to JMX: %s", objectName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregister MBean; null is ignored.
+     */
+    public static void unregister(ObjectName name) {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            //already replaced
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replication lag backpressure: before the next batch, lag is measured and, if it is above the limit, the migration
+ * pauses until the replicas catch up. Lag is measured either by custom query (lag-probe) executed on every replica
+ * of the instance (see {@link DbInstance#getReplicas()}), or by built-in query on the master
+ * ({@link DbInstance#getReplicationLagQuery()}), executed in separate session. The query returns lag in seconds.
+ * <p/>
+ * When the lag is below the limit, it is not measured more often than once per poll interval. Thread safe: parallel
+ * sessions wait together.
+ *
+ * @version $Id$
+ */
+public class LagProbe {
+    public static final long MIN_POLL_MS = 500;
+    public static final long MAX_POLL_MS = 10000;
+
+    private final DbInstance master;
+    private final List<DbInstance> replicas;
+    private final String query;
+    private final double maxLag;
+    private final long pollMs;
+    private Connection masterSession;
+    private long lastCheck;
+    private long pausedMillis;
+
+    private LagProbe(DbInstance master, List<DbInstance> replicas, String query, double maxLag) {
+        this.master = master;
+        this.replicas = replicas;
+        this.query = query;
+        this.maxLag = maxLag;
+        this.pollMs = Math.max(MIN_POLL_MS, Math.min(MAX_POLL_MS, (long) (maxLag * 500)));
+    }
+
+    /**
+     * Create lag probe for the instance.
+     *
+     * @param db       the migrated (master) instance
+     * @param ctx      run context
+     * @param lagProbe custom query executed on replicas; null means built-in query on the master
+     * @param maxLag   maximum lag in seconds
+     * @return the probe
+     * @throws ApplyAlterException no way to measure the lag
+     */
+    public static LagProbe create(DbInstance db, RunContext ctx, String lagProbe, double maxLag)
+            throws ApplyAlterException {
+        final LagProbe probe;
+        if (lagProbe != null && lagProbe.trim().length() > 0) {
+            if (db.getReplicas().isEmpty())
+                throw new ApplyAlterException("lag-probe requires replica of %s (replicaof in dbconfig)", db.getId());
+            probe = new LagProbe(db, db.getReplicas(), lagProbe.trim(), maxLag);
+        } else {
+            final String builtin = db.getReplicationLagQuery();
+            if (builtin == null)
+                throw new ApplyAlterException("no built-in replication lag query for %s, lag-probe is required",
+                        db.getEngine());
+            probe = new LagProbe(db, Collections.<DbInstance>emptyList(), builtin, maxLag);
+        }
+        ctx.report(ReportLevel.STATEMENT_STEP, "maximum replication lag %.1f s, probe: %s", maxLag, probe.query);
+        return probe;
+    }
+
+    /**
+     * Wait until the lag is below the limit.
+     *
+     * @return milliseconds waited
+     */
+    public synchronized long await(RunContext ctx) {
+        final long start = System.currentTimeMillis();
+        if (start - lastCheck < pollMs)
+            return 0;
+        double lag = measure(ctx);
+        if (lag <= maxLag) {
+            lastCheck = System.currentTimeMillis();
+            return 0;
+        }
+
+        ctx.report(ReportLevel.STATEMENT_STEP, " replication lag %.1f s is over %.1f s, pausing", lag, maxLag);
+        while (lag > maxLag) {
+            try {
+                Thread.sleep(pollMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplyAlterException("interrupted while waiting for replicas", e);
+            }
+            lag = measure(ctx);
+        }
+        lastCheck = System.currentTimeMillis();
+        final long paused = lastCheck - start;
+        pausedMillis += paused;
+        ctx.report(ReportLevel.STATEMENT_STEP, " replication lag %.1f s, resuming after %d ms", lag, paused);
+        return paused;
+    }
+
+    public synchronized long getPausedMillis() {
+        return pausedMillis;
+    }
+
+    /**
+     * Close the session used for built-in probe.
+     */
+    public synchronized void close() {
+        DbUtils.close(masterSession);
+        masterSession = null;
+    }
+
+    /**
+     * Current lag: maximum of all replicas.
+     */
+    private double measure(RunContext ctx) {
+        try {
+            if (replicas.isEmpty()) {
+                if (masterSession == null)
+                    masterSession = master.openSession(ctx);
+                return measure(masterSession);
+            }
+            double lag = 0;
+            for (DbInstance replica : replicas) {
+                lag = Math.max(lag, measure(replica.getConnection(ctx)));
+            }
+            return lag;
+        } catch (SQLException e) {
+            throw new ApplyAlterException("replication lag probe failed: %s", e, e.getMessage());
+        }
+    }
+
+    private double measure(Connection con)
+            throws SQLException {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.createStatement();
+            rs = st.executeQuery(query);
+            return rs.next() ? rs.getDouble(1) : 0;
+        } finally {
+            DbUtils.close(st, rs);
+            //do not keep the snapshot open (replication conflicts on hot standby)
+            con.rollback();
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+package ch.ips.g2.applyalter;
+
+/**
+ * Growable list of primitive longs: 8 bytes per item (plus the spare capacity), no boxing.
+ * Used for large ID lists held on the client.
+ *
+ * @version $Id$
+ */
+public class LongList {
+    private long[] data;
+    private int size;
+
+    public LongList() {
+        this(1024);
+    }
+
+    public LongList(int initialCapacity) {
+        this.data = new long[Math.max(initialCapacity, 16)];
+    }
+
+    public void add(long value) {
+        if (size == data.length) {
+            //grow by half: doubling would waste too much memory for big lists
+            long[] grown = new long[data.length + (data.length >> 1)];
+            System.arraycopy(data, 0, grown, 0, size);
+            data = grown;
+        }
+        data[size++] = value;
+    }
+
+    public long get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return data[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Backing array (not a copy!); only the first {@link #size()} items are valid.
+     */
+    public long[] array() {
+        return data;
+    }
+
+    /**
+     * Release the spare capacity.
+     */
+    public void trimToSize() {
+        if (size < data.length) {
+            long[] trimmed = new long[size];
+            System.arraycopy(data, 0, trimmed, 0, size);
+            data = trimmed;
+        }
+    }
+
+}
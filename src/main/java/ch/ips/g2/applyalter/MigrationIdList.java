@@ -4,7 +4,10 @@ import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Map;
 
 import static ch.ips.g2.applyalter.ReportLevel.DETAIL;
@@ -19,6 +22,15 @@ import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
  * temporary table and then processed in batches. Every batch is made by deleting rows from the idlist
  * temporary table and inserting into second temporary table. This temporary table is then used in the
  * main query.
+ * <p/>
+ * The numbered variant ({@link #isNumbered()}) stores the list just once, with sequence number, and every
+ * batch is selected by range of the sequence.
+ * <p/>
+ * The client-side variant ({@link #isClientside()}) needs no temporary table at all: numeric IDs are read into memory
+ * (8 bytes per ID) and every batch is bound directly to the statement, see {@link DbInstance#bindIdList}.
+ * <p/>
+ * Temporary tables are engine specific, see {@link DbInstance#createTempTable}: declared global temporary table
+ * on DB2, session temporary table on PostgreSQL, global temporary table (dropped at the end) on Oracle.
  *
  * @author Kamil Podlesak &lt;kamil.podlesak@ips-ag.cz&gt;
  * @version $Id$
@@ -30,6 +42,8 @@ public class MigrationIdList extends AbstractMigration {
 
     private String idquery;
     private String idcolumn;
+    private boolean numbered;
+    private boolean clientside;
 
     /**
      * Source statement: required, must contain SELECT statement that produces temporary table.
@@ -61,6 +75,31 @@ public class MigrationIdList extends AbstractMigration {
         this.idcolumn = idcolumn;
     }
 
+    /**
+     * Numbered variant: the ID list is numbered once (by <code>row_number()</code>) and batches are selected
+     * by range of this sequence. There is no batch table and no deletes, so the cost of a batch does not
+     * depend on the size of the list.
+     */
+    public boolean isNumbered() {
+        return numbered;
+    }
+
+    public void setNumbered(boolean numbered) {
+        this.numbered = numbered;
+    }
+
+    /**
+     * Client-side variant: the ID list is read into memory and every batch is bound as parameters (array
+     * parameter on PostgreSQL). The {@link #getIdcolumn()} must be single numeric column.
+     */
+    public boolean isClientside() {
+        return clientside;
+    }
+
+    public void setClientside(boolean clientside) {
+        this.clientside = clientside;
+    }
+
     @Override
     protected String getDefaultPlaceholder() {
         return DEFAULT_PLACEHOLDER;
@@ -82,34 +121,21 @@ public class MigrationIdList extends AbstractMigration {
             throw new ApplyAlterException("invalid apply script: missing \"idcolumn\"" + this);
         if (step == null || step.longValue() < 1)
             throw new ApplyAlterException("invalid apply script: missing or invalid \"step\" for " + this);
+        if (clientside && numbered)
+            throw new ApplyAlterException("invalid apply script: \"clientside\" and \"numbered\" are exclusive: " + this);
+        if (clientside && idcolumn.indexOf(',') >= 0)
+            throw new ApplyAlterException("invalid apply script: \"clientside\" requires single idcolumn: " + this);
     }
 
     //-----------------------------------------------------------------------------------------------------------------
 
+    //short: Oracle appends SID and _IDX, identifiers are limited to 30 characters
     public static final String TEMP_TABLE_MAIN = "MGR_IDS";
     public static final String TEMP_TABLE_BATCH = "MIG_BATCH";
 
 
     /**
-     * Get full temporary table name.
-     *
-     * @param db database instance, might contain dialect information in fitire
-     * @return table name (fully quelified)
-     */
-    protected String makeTempTableName(DbInstance db, String baseName) {
-        //so far, only DB2 is supported
-        return "session." + baseName;
-    }
-
-
-    private static final String SQL_CREATE_TEMPORARY_TABLE =
-            "DECLARE GLOBAL TEMPORARY TABLE %s AS (%s) DEFINITION ONLY " +
-                    " on commit preserve rows" +
-                    " NOT LOGGED on rollback delete rows" +
-                    " WITH REPLACE";
-
-    /**
-     * Create temporary table. This method is DB2-specific!
+     * Create temporary table with the columns of {@link #getIdquery()}, indexed by {@link #getIdcolumn()}.
      *
      * @param dbConn database connection and other data
      * @param ctx    run context, used for logging
@@ -120,28 +146,37 @@ public class MigrationIdList extends AbstractMigration {
             throws ApplyAlterException {
         if (getIdquery() == null)
             throw new ApplyAlterException("invalid apply script: missing source query for " + this);
+        return createTempTable(dbConn, ctx, tableBaseName, getIdquery().trim(), getIdcolumn());
+    }
 
-        String tableName = makeTempTableName(dbConn, tableBaseName);
-
-        ctx.report(STATEMENT_STEP, "creating temporary table %s", tableName);
-
+    /**
+     * Create temporary table; the real work (dialect-specific) is done by
+     * {@link DbInstance#createTempTable(RunContext, Connection, String, String, String)}. Where temporary tables are
+     * shared schema objects (Oracle), the name is made unique for the session, see
+     * {@link DbInstance#makeSessionTempTableName(Connection, String)}: base names must be short.
+     *
+     * @param dbConn        database connection and other data
+     * @param ctx           run context, used for logging
+     * @param tableBaseName table name, without schema
+     * @param query         query defining the columns
+     * @param indexColumns  columns of the index
+     * @return name of the created table
+     * @throws ApplyAlterException attempt to create temporary table has failed
+     */
+    protected String createTempTable(DbInstance dbConn, RunContext ctx, String tableBaseName, String query,
+                                     String indexColumns)
+            throws ApplyAlterException {
+        final Connection connection = dbConn.getConnection(ctx);
+        String tableName = dbConn.makeTempTableName(tableBaseName);
         try {
-            final Connection connection = dbConn.getConnection(ctx);
-
-            //step 1: create temporary table with the columns of query
-            String sql = String.format(SQL_CREATE_TEMPORARY_TABLE, tableName, getIdquery().trim());
-            ctx.report(DETAIL, "creating temporary table by query: %s", sql);
-            DbUtils.executeUpdate(connection, sql);
-
-            //important: create index
-            String indexSql = String.format("create index %1$s_IDX on %1$s (%2$s)", tableName, getIdcolumn());
-            ctx.report(DETAIL, "  creating index: %s", indexSql);
-            DbUtils.executeUpdate(connection, indexSql);
-
+            //concurrent runs must not share the table (Oracle: ORA-14452 on drop, then ORA-00955 on create)
+            final String baseName = dbConn.makeSessionTempTableName(connection, tableBaseName);
+            tableName = dbConn.makeTempTableName(baseName);
+            ctx.report(STATEMENT_STEP, "creating temporary table %s", tableName);
+            return dbConn.createTempTable(ctx, connection, baseName, query, indexColumns);
         } catch (SQLException e) {
             throw new ApplyAlterException("failed to create temporary table %s: %s", e, tableName, e.getMessage());
         }
-        return tableName;
     }
 
     //-----------------------------------------------------------------------------------------------------------------
@@ -154,6 +189,15 @@ public class MigrationIdList extends AbstractMigration {
         final Connection connection = dbConn.getConnection(ctx);
         commitStep(ctx, connection);
 
+        if (isNumbered()) {
+            executeNumbered(dbConn, ctx, connection);
+            return;
+        }
+        if (isClientside()) {
+            executeClientside(dbConn, ctx, connection);
+            return;
+        }
+
         //create temporary table, empty
         final String tableMain = createTempTable(dbConn, ctx, TEMP_TABLE_MAIN);
         final String tableBatch = createTempTable(dbConn, ctx, TEMP_TABLE_BATCH);
@@ -171,7 +215,7 @@ public class MigrationIdList extends AbstractMigration {
 
 
         //fill the table
-        int totalIdCount = fillIdList(ctx, connection, tableMain);
+        int totalIdCount = fillIdList(dbConn, ctx, connection, tableMain);
 
         ctx.report(ReportLevel.STATEMENT, "total %d rows to be migrated", totalIdCount);
 
@@ -180,28 +224,46 @@ public class MigrationIdList extends AbstractMigration {
         PreparedStatement stDeleteBatch = null;
         PreparedStatement stCleanBatchTable = null;
         PreparedStatement stMain = null;
+        final Throttle throttle = createThrottle(dbConn, ctx);
+        final BatchLog batchLog = createBatchLog(dbConn, ctx);
+        ProgressTracker progress = null;
+        boolean done = false;
         try {
+            final AdaptiveStep stepControl = createStepControl();
             //prepare statements for batches
-            String sqlCopyBatch = String.format("insert into %2$s (select * from %1$s fetch first %3$d rows only)",
-                    tableMain, tableBatch, getStep());
+            long preparedStep = stepControl.getStep();
+            String sqlCopyBatch = makeCopyBatchSql(dbConn, tableMain, tableBatch, preparedStep);
             String sqlDeleteBatch = String.format("delete from %1$s where (%3$s) in (select %3$s from %2$s)",
                     tableMain, tableBatch, getIdcolumn());
 
             ctx.report(STATEMENT_STEP, "migration query 1: %s", sqlCopyBatch);
             ctx.report(STATEMENT_STEP, "migration query 2: %s", mainQuery.statement);
             ctx.report(STATEMENT_STEP, "migration query 3: %s", sqlDeleteBatch);
+            if (stepControl.isAdaptive()) {
+                ctx.report(STATEMENT_STEP, "adaptive step, target %d ms", getTargetBatchMs());
+            }
 
             stCopyBatch = connection.prepareStatement(sqlCopyBatch);
             stDeleteBatch = connection.prepareStatement(sqlDeleteBatch);
             stCleanBatchTable = connection.prepareStatement(String.format("delete from %s", tableBatch));
             stMain = connection.prepareStatement(mainQuery.statement);
 
-            final int supposedBatchCount = totalIdCount / getStep().intValue();
+            progress = startProgress(ctx, totalIdCount);
             //and process the batches
             int batchCount = 0;
             int updatedCount = 0;
             int processedCount = 0;
             do {
+                //step is part of the SQL text, statement must be prepared again when it changes
+                if (stepControl.getStep() != preparedStep) {
+                    preparedStep = stepControl.getStep();
+                    DbUtils.close(stCopyBatch);
+                    stCopyBatch = connection.prepareStatement(
+                            makeCopyBatchSql(dbConn, tableMain, tableBatch, preparedStep));
+                    ctx.report(DETAIL, "  step changed to %d", preparedStep);
+                }
+                final long batchStart = System.currentTimeMillis();
+
                 //batch, step 1: select the batch
                 final int copied = stCopyBatch.executeUpdate();
                 if (copied < 1) {
@@ -215,15 +277,23 @@ public class MigrationIdList extends AbstractMigration {
                 updatedCount += updated;
                 processedCount += copied;
 
-                ctx.report(DETAIL, "  batch %d/%d: %d of %d updated",
-                        batchCount, supposedBatchCount, updated, copied);
-
                 //and delete batch
                 stDeleteBatch.executeUpdate();
                 stCleanBatchTable.executeUpdate();
 
                 //the most important thing: commit
-                commitStep(ctx, connection);
+                commitBatch(ctx, connection, batchLog, null, null, copied, updated, batchStart);
+
+                final long batchMs = System.currentTimeMillis() - batchStart;
+                stepControl.update(copied, batchMs);
+                //the step might be adaptive: expected total from the IDs left and the next step
+                final long nextStep = stepControl.getStep();
+                final long supposedBatchCount = batchCount
+                        + (Math.max(0, totalIdCount - processedCount) + nextStep - 1) / nextStep;
+                ctx.report(DETAIL, "  batch %d/%d: %d of %d updated (%d ms)",
+                        batchCount, supposedBatchCount, updated, copied, batchMs);
+                progress.batchDone(ctx, copied, updated);
+                throttle.acquire(ctx, updated);
 
                 //ctx.report( DETAIL, "   batch cleaned up, going to next one" );
             }
@@ -233,23 +303,272 @@ public class MigrationIdList extends AbstractMigration {
                     updatedCount, batchCount, processedCount
             );
 
+            done = true;
         } finally {
             DbUtils.close(stCopyBatch);
             DbUtils.close(stDeleteBatch);
             DbUtils.close(stCleanBatchTable);
             DbUtils.close(stMain);
+            batchLog.finish(this, ctx, connection, done);
+            throttle.close(ctx);
+            if (progress != null)
+                progress.finish(ctx);
+            dbConn.dropTempTable(ctx, connection, tableBatch);
+            dbConn.dropTempTable(ctx, connection, tableMain);
+        }
+
+    }
+
+    /**
+     * Sequence column of the numbered ID list.
+     */
+    public static final String SEQ_COLUMN = "MIG_SEQ";
+
+    /**
+     * The numbered variant (see {@link #isNumbered()}).
+     */
+    protected void executeNumbered(DbInstance dbConn, RunContext ctx, Connection connection)
+            throws SQLException {
+        //order by is required by Oracle; batches in key order are also better for locality
+        final String numberedQuery = String.format(
+                "select row_number() over (order by %2$s) as %1$s, ids.* from (%3$s) ids",
+                SEQ_COLUMN, getIdcolumn(), getIdquery().trim());
+        final String tableMain = createTempTable(dbConn, ctx, TEMP_TABLE_MAIN, numberedQuery, SEQ_COLUMN);
+        //always commit temporary tables
+        connection.commit();
+
+        //the same columns as the batch table of the default variant
+        ProcessedQuery mainQuery = processQuery(getStatement(),
+                String.format("(select %s from %s where %s between ? and ?)", listIdColumns(connection, tableMain),
+                        tableMain, SEQ_COLUMN)
+        );
+        if (mainQuery.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s", getPlaceholder() == null ? "<null>"
+                    : getPlaceholder(), this.toString());
+        }
+
+        final int totalIdCount;
+        try {
+            String insertSql = String.format("INSERT INTO %s (%s)", tableMain, numberedQuery);
+            ctx.report(STATEMENT_STEP, "getting source data: %s", insertSql);
+            totalIdCount = DbUtils.executeUpdate(connection, insertSql);
+            dbConn.analyzeTempTable(ctx, connection, tableMain);
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to get main ID list %s: %s", e, tableMain, e.getMessage());
+        }
+        ctx.report(ReportLevel.STATEMENT, "total %d rows to be migrated", totalIdCount);
+        ctx.report(STATEMENT_STEP, "migration query: %s", mainQuery.statement);
+
+        PreparedStatement stMain = null;
+        final Throttle throttle = createThrottle(dbConn, ctx);
+        final BatchLog batchLog = createBatchLog(dbConn, ctx);
+        final ProgressTracker progress = startProgress(ctx, totalIdCount);
+        boolean done = false;
+        try {
+            stMain = connection.prepareStatement(mainQuery.statement);
+            final AdaptiveStep stepControl = createStepControl();
+
+            int batchCount = 0;
+            long updatedCount = 0;
+            long seqL = 1;
+            while (seqL <= totalIdCount) {
+                final long seqH = Math.min(seqL + stepControl.getStep() - 1, totalIdCount);
+                final long batchStart = System.currentTimeMillis();
+                batchCount++;
+
+                int stIdx = 1;
+                for (int i = 0; i < mainQuery.replacements; i++) {
+                    stMain.setLong(stIdx++, seqL);
+                    stMain.setLong(stIdx++, seqH);
+                }
+                final int updated = stMain.executeUpdate();
+                updatedCount += updated;
+
+                //the most important thing: commit
+                commitBatch(ctx, connection, batchLog, seqL, seqH, seqH - seqL + 1, updated, batchStart);
+
+                final long batchMs = System.currentTimeMillis() - batchStart;
+                ctx.report(DETAIL, "  batch %d: %d-%d of %d, %d updated (%d ms)",
+                        batchCount, seqL, seqH, totalIdCount, updated, batchMs);
+                stepControl.update(seqH - seqL + 1, batchMs);
+                progress.batchDone(ctx, seqH - seqL + 1, updated);
+                throttle.acquire(ctx, updated);
+                seqL = seqH + 1;
+            }
+
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated in %d batches (%d rows processed)",
+                    updatedCount, batchCount, totalIdCount
+            );
+            done = true;
+        } finally {
+            DbUtils.close(stMain);
+            batchLog.finish(this, ctx, connection, done);
+            throttle.close(ctx);
+            progress.finish(ctx);
+            dbConn.dropTempTable(ctx, connection, tableMain);
+        }
+    }
+
+    /**
+     * Fetch size used to read the client-side ID list.
+     */
+    public static final int CLIENTSIDE_FETCH_SIZE = 10000;
+
+    /**
+     * The client-side variant (see {@link #isClientside()}).
+     */
+    protected void executeClientside(DbInstance dbConn, RunContext ctx, Connection connection)
+            throws SQLException {
+        ProcessedQuery mainQuery = processQuery(getStatement(), dbConn.makeIdListExpression(1));
+        if (mainQuery.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s", getPlaceholder() == null ? "<null>"
+                    : getPlaceholder(), this.toString());
+        }
+
+        //the real list of parameters might be long
+        ctx.report(STATEMENT_STEP, "migration query (single ID): %s", mainQuery.statement);
+
+        final LongList ids = readIdList(ctx, connection);
+        final long[] idArray = ids.array();
+        final int totalIdCount = ids.size();
+        ctx.report(ReportLevel.STATEMENT, "total %d rows to be migrated", totalIdCount);
+
+        final int maxSize = dbConn.getMaxIdListSize();
+        final AdaptiveStep stepControl = createStepControl();
+        if (stepControl.getStep() > maxSize) {
+            ctx.report(STATEMENT_STEP, "step limited to %d (maximum size of ID list)", maxSize);
         }
 
+        PreparedStatement stMain = null;
+        String preparedExpression = null;
+        final Throttle throttle = createThrottle(dbConn, ctx);
+        final BatchLog batchLog = createBatchLog(dbConn, ctx);
+        final ProgressTracker progress = startProgress(ctx, totalIdCount);
+        boolean done = false;
+        try {
+            int batchCount = 0;
+            long updatedCount = 0;
+            int from = 0;
+            while (from < totalIdCount) {
+                final int size = (int) Math.min(stepControl.getStep(), maxSize);
+                final int count = Math.min(size, totalIdCount - from);
+                //list of parameters depends on the size (but array parameter does not)
+                final String expression = dbConn.makeIdListExpression(size);
+                if (!expression.equals(preparedExpression)) {
+                    DbUtils.close(stMain);
+                    mainQuery = processQuery(getStatement(), expression);
+                    stMain = connection.prepareStatement(mainQuery.statement);
+                    if (preparedExpression != null)
+                        ctx.report(DETAIL, "  step changed to %d", size);
+                    preparedExpression = expression;
+                }
+                final long batchStart = System.currentTimeMillis();
+                batchCount++;
+
+                int stIdx = 1;
+                for (int i = 0; i < mainQuery.replacements; i++) {
+                    stIdx = dbConn.bindIdList(connection, stMain, stIdx, idArray, from, count, size);
+                }
+                final int updated = stMain.executeUpdate();
+                updatedCount += updated;
+
+                //the most important thing: commit
+                commitBatch(ctx, connection, batchLog, idArray[from], idArray[from + count - 1], count, updated,
+                        batchStart);
+
+                final long batchMs = System.currentTimeMillis() - batchStart;
+                ctx.report(DETAIL, "  batch %d: %d-%d of %d, %d updated (%d ms)",
+                        batchCount, from + 1, from + count, totalIdCount, updated, batchMs);
+                stepControl.update(count, batchMs);
+                progress.batchDone(ctx, count, updated);
+                throttle.acquire(ctx, updated);
+                from += count;
+            }
+
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated in %d batches (%d rows processed)",
+                    updatedCount, batchCount, totalIdCount
+            );
+            done = true;
+        } finally {
+            DbUtils.close(stMain);
+            batchLog.finish(this, ctx, connection, done);
+            throttle.close(ctx);
+            progress.finish(ctx);
+        }
+    }
+
+    /**
+     * Columns of the numbered temporary table without {@link #SEQ_COLUMN}, i.e. all the columns of the ID query.
+     */
+    private String listIdColumns(Connection connection, String tableMain) {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = connection.createStatement();
+            rs = st.executeQuery(String.format("select * from %s where 1 = 0", tableMain));
+            final ResultSetMetaData meta = rs.getMetaData();
+            final StringBuilder columns = new StringBuilder();
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                final String column = meta.getColumnName(i);
+                if (SEQ_COLUMN.equalsIgnoreCase(column))
+                    continue;
+                if (columns.length() > 0)
+                    columns.append(", ");
+                columns.append(column);
+            }
+            return columns.toString();
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to get columns of %s: %s", e, tableMain, e.getMessage());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Read the whole ID list into memory; NULL IDs are skipped.
+     */
+    private LongList readIdList(RunContext ctx, Connection connection) {
+        ctx.report(STATEMENT_STEP, "getting source data: %s", getIdquery());
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = connection.createStatement();
+            st.setFetchSize(CLIENTSIDE_FETCH_SIZE);
+            rs = st.executeQuery(getIdquery());
+            final int column = rs.findColumn(getIdcolumn().trim());
+            final LongList ids = new LongList(CLIENTSIDE_FETCH_SIZE);
+            while (rs.next()) {
+                final long id = rs.getLong(column);
+                if (!rs.wasNull())
+                    ids.add(id);
+            }
+            ids.trimToSize();
+            return ids;
+        } catch (SQLException e) {
+            throw new ApplyAlterException("failed to get main ID list: %s", e, e.getMessage());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Query that moves one batch of IDs from the main temporary table to the batch table.
+     */
+    private String makeCopyBatchSql(DbInstance dbConn, String tableMain, String tableBatch, long step) {
+        return String.format("insert into %s (%s)",
+                tableBatch, dbConn.limitRows("select * from " + tableMain, step));
     }
 
     /**
      * Phase A: fill the main temporary table.
      */
-    private int fillIdList(RunContext ctx, Connection connection, String tableMain) {
+    private int fillIdList(DbInstance dbConn, RunContext ctx, Connection connection, String tableMain) {
         try {
             String insertSql = String.format("INSERT INTO %s (%s)", tableMain, getIdquery());
             ctx.report(STATEMENT_STEP, "getting source data: %s", insertSql);
-            return DbUtils.executeUpdate(connection, insertSql);
+            final int count = DbUtils.executeUpdate(connection, insertSql);
+            dbConn.analyzeTempTable(ctx, connection, tableMain);
+            return count;
         } catch (SQLException e) {
             throw new ApplyAlterException("failed to get main ID list %s: %s", e, tableMain, e.getMessage());
         }
@@ -263,7 +582,13 @@ public class MigrationIdList extends AbstractMigration {
         b.append("logid: ").append(logid).append("\n");
         b.append("statement:").append(" ").append(statement).append("\n");
         b.append("idquery: ").append(idquery).append("\n");
+        if (numbered)
+            b.append("numbered: ").append(numbered).append("\n");
+        if (clientside)
+            b.append("clientside: ").append(clientside).append("\n");
         b.append("step: ").append(step).append("\n");
+        if (targetBatchMs != null)
+            b.append("target-batch-ms: ").append(targetBatchMs).append("\n");
         b.append("description: ").append(description).append("\n");
         return b.toString();
     }
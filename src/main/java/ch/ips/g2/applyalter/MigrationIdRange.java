@@ -6,7 +6,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
 
@@ -19,6 +21,9 @@ import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
  * Important limitation of this migration is that the migrated data table must have single BIGINT primary key
  * column. It is not possible to migrate tables with composite keys, tables with non-integer keys or multiple
  * tables at once.
+ * <p/>
+ * With sparse keys, {@link Planner#seek} can be used: every batch then starts at the next existing ID
+ * and contains {@link #getStep()} rows.
  *
  * @version $Id$
  */
@@ -34,6 +39,25 @@ public class MigrationIdRange extends AbstractMigration {
     private String fromidexpr;
     private Long toid;
     private String toidexpr;
+    private Integer parallel;
+    private Planner planner;
+    private String idtable;
+    private String idcolumn;
+
+    /**
+     * How the batch bounds are computed.
+     */
+    public enum Planner {
+        /**
+         * Fixed windows of {@link #getStep()} IDs; the default.
+         */
+        fixed,
+        /**
+         * Windows of {@link #getStep()} existing rows: bounds are read from the table (requires
+         * {@link #getIdtable()} and {@link #getIdcolumn()}), so empty gaps cost nothing.
+         */
+        seek
+    }
 
     @Override
     protected String getDefaultPlaceholder() {
@@ -73,6 +97,56 @@ public class MigrationIdRange extends AbstractMigration {
         this.toidexpr = toidexpr;
     }
 
+    /**
+     * Number of parallel sessions; null or 1 means that the migration runs in the main connection.
+     * Parallel sessions are separate transactions, so the migration cannot see uncommitted changes of the
+     * alterscript: everything done so far is committed before the start.
+     */
+    public Integer getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Integer parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Batch planner; null means {@link Planner#fixed}.
+     */
+    public Planner getPlanner() {
+        return planner;
+    }
+
+    public void setPlanner(Planner planner) {
+        this.planner = planner;
+    }
+
+    /**
+     * Table with the migrated IDs, used by {@link Planner#seek}.
+     */
+    public String getIdtable() {
+        return idtable;
+    }
+
+    public void setIdtable(String idtable) {
+        this.idtable = idtable;
+    }
+
+    /**
+     * The BIGINT key column of {@link #getIdtable()}, used by {@link Planner#seek}.
+     */
+    public String getIdcolumn() {
+        return idcolumn;
+    }
+
+    public void setIdcolumn(String idcolumn) {
+        this.idcolumn = idcolumn;
+    }
+
+    protected boolean isSeekPlanner() {
+        return planner == Planner.seek;
+    }
+
     //-----------------------------------------------------------------------------------------------------------------
 
     /**
@@ -120,27 +194,96 @@ public class MigrationIdRange extends AbstractMigration {
             throws ApplyAlterException, SQLException {
         Connection connection = dbConn.getConnection(ctx);
 
-        PreparedStatement st = null;
+        //get ranges
+        long lower = fetchRangeValue(ctx, connection, getFromid(), getFromidexpr());
+        long upper = fetchRangeValue(ctx, connection, getToid(), getToidexpr());
+
+        ProcessedQuery query = processQuery(getStatement(), REPLACEMENT);
+        if (query.replacements < 1) {
+            //this means that the query is just plain one!
+            throw new ApplyAlterException("invalid query (missing %s placeholder): %s", getPlaceholder(), getStatement());
+        }
+
+        if (isSeekPlanner() && (getIdtable() == null || getIdcolumn() == null)) {
+            throw new ApplyAlterException("invalid apply script: planner seek requires \"idtable\" and \"idcolumn\" for "
+                    + this);
+        }
+
+        ctx.report(STATEMENT_STEP, "runnig query: %s", query.statement);
+        final AdaptiveStep stepControl = createStepControl();
+        ctx.report(STATEMENT_STEP, " with IDs in range %d-%d, step %d%s", lower, upper, stepControl.getStep(),
+                stepControl.isAdaptive() ? " (adaptive, target " + getTargetBatchMs() + " ms)" : "");
+        if (isSeekPlanner()) {
+            ctx.report(STATEMENT_STEP, " step counts existing rows: %s", makeSeekSql(dbConn, stepControl.getStep()));
+        }
+
+        final Throttle throttle = createThrottle(dbConn, ctx);
+        //progress is measured in IDs of the range
+        final ProgressTracker progress = startProgress(ctx, upper < lower ? 0 : upper - lower + 1);
         try {
-            //get ranges
-            Long lower = fetchRangeValue(ctx, connection, getFromid(), getFromidexpr());
-            Long upper = fetchRangeValue(ctx, connection, getToid(), getToidexpr());
-
-            ProcessedQuery query = processQuery(getStatement(), REPLACEMENT);
-            if (query.replacements < 1) {
-                //this means that the query is just plain one!
-                throw new ApplyAlterException("invalid query (missing %s placeholder): %s", getPlaceholder(), getStatement());
+            if (getParallel() != null && getParallel().intValue() > 1) {
+                executeParallel(dbConn, ctx, query, lower, upper, throttle, progress);
+                return;
             }
 
-            ctx.report(STATEMENT_STEP, "runnig query: %s", query.statement);
-            st = connection.prepareStatement(query.statement);
+            PreparedStatement st = null;
+            try {
+                st = connection.prepareStatement(query.statement);
+                long totalChangedRows = processRange(dbConn, ctx, connection, st, query, lower, upper, stepControl,
+                        throttle, progress);
+                ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed", totalChangedRows);
+            } finally {
+                DbUtils.close(st);
+            }
+        } finally {
+            throttle.close(ctx);
+            progress.finish(ctx);
+        }
 
-            final Long step = getStep();
-            ctx.report(STATEMENT_STEP, " with IDs in range %d-%d, step %d", lower, upper, step);
+    }
 
-            long totalChangedRows = 0;
-            for (long currentL = lower; currentL <= upper; currentL += step) {
-                final long currentH = Math.min(currentL + step - 1, upper);
+    /**
+     * Process the range step by step, commit after every step.
+     *
+     * @return total number of changed rows
+     */
+    protected long processRange(DbInstance dbConn, RunContext ctx, Connection connection, PreparedStatement st,
+                                ProcessedQuery query,
+                                long lower, long upper, AdaptiveStep stepControl, Throttle throttle,
+                                ProgressTracker progress)
+            throws SQLException {
+        long totalChangedRows = 0;
+        long currentL = lower;
+        PreparedStatement stSeek = null;
+        long seekStep = -1;
+        final BatchLog batchLog = createBatchLog(dbConn, ctx);
+        boolean done = false;
+        try {
+            while (currentL <= upper) {
+                final long batchFrom = currentL;
+                final long step = stepControl.getStep();
+                final long batchStart = System.currentTimeMillis();
+                final long currentH;
+                final long units;
+                if (isSeekPlanner()) {
+                    if (step != seekStep) {
+                        //step is part of the SQL text
+                        DbUtils.close(stSeek);
+                        stSeek = connection.prepareStatement(makeSeekSql(dbConn, step));
+                        seekStep = step;
+                    }
+                    final long[] bounds = seekBatch(stSeek, currentL, upper);
+                    if (bounds == null) {
+                        //no more rows in the range
+                        break;
+                    }
+                    currentL = bounds[0];
+                    currentH = bounds[1];
+                    units = bounds[2];
+                } else {
+                    currentH = rangeEnd(currentL, step, upper);
+                    units = currentH - currentL + 1;
+                }
                 //ctx.report( ReportLevel.DETAIL, "  step: BETWEEN %d AND %d", currentL, currentH );
 
                 //full the query
@@ -151,19 +294,172 @@ public class MigrationIdRange extends AbstractMigration {
                 }
                 //execute
                 final int changedRows = st.executeUpdate();
-                ctx.report(ReportLevel.DETAIL, "  step %d-%d of %d finished, %d rows changed",
-                        currentL, currentH, upper, changedRows);
                 //commit
-                commitStep(ctx, connection);
+                commitBatch(ctx, connection, batchLog, currentL, currentH, units, changedRows, batchStart);
+
+                final long batchMs = System.currentTimeMillis() - batchStart;
+                ctx.report(ReportLevel.DETAIL, "  step %d-%d of %d finished, %d rows changed (%d ms)",
+                        currentL, currentH, upper, changedRows, batchMs);
+                stepControl.update(units, batchMs);
+                //seek planner skips the gaps: they are processed too
+                progress.batchDone(ctx, currentH - batchFrom + 1, changedRows);
+                throttle.acquire(ctx, changedRows);
 
                 totalChangedRows += changedRows;
+                if (currentH >= upper)
+                    break;
+                currentL = currentH + 1;
             }
+            done = true;
+        } finally {
+            DbUtils.close(stSeek);
+            batchLog.finish(this, ctx, connection, done);
+        }
+        return totalChangedRows;
+    }
+
+    /**
+     * Query for {@link Planner#seek}: bounds and size of the next batch of existing IDs.
+     */
+    protected String makeSeekSql(DbInstance dbConn, long step) {
+        final String ids = String.format("select %1$s from %2$s where %1$s >= ? and %1$s <= ? order by %1$s",
+                getIdcolumn(), getIdtable());
+        return String.format("select min(%1$s), max(%1$s), count(*) from (%2$s) batch_ids",
+                getIdcolumn(), dbConn.limitRows(ids, step));
+    }
+
+    /**
+     * Find the next batch: skip to the first existing ID and take {@link #getStep()} rows.
+     *
+     * @return lower bound, upper bound and number of rows; null if there are no more rows
+     */
+    private long[] seekBatch(PreparedStatement stSeek, long from, long upper)
+            throws SQLException {
+        ResultSet rs = null;
+        try {
+            stSeek.setLong(1, from);
+            stSeek.setLong(2, upper);
+            rs = stSeek.executeQuery();
+            if (!rs.next())
+                return null;
+            final long count = rs.getLong(3);
+            if (count < 1)
+                return null;
+            return new long[]{rs.getLong(1), rs.getLong(2), count};
+        } finally {
+            DbUtils.close(null, rs);
+        }
+    }
+
+    /**
+     * Number of chunks per session: the range is split to more chunks than sessions, so that sessions that
+     * get dense parts of the range do not hold the whole migration.
+     */
+    protected static final int CHUNKS_PER_SESSION = 8;
+
+    /**
+     * Upper bound of the batch (or chunk) starting at <code>from</code>, without overflow: the range might be near
+     * {@link Long#MAX_VALUE} and the difference of the bounds might not fit in long.
+     *
+     * @param from  lower bound of the batch, <code>&lt;= upper</code>
+     * @param size  size of the batch, positive
+     * @param upper upper bound of the whole range
+     * @return <code>from + size - 1</code>, but at most <code>upper</code>
+     */
+    static long rangeEnd(long from, long size, long upper) {
+        if (from > Long.MAX_VALUE - (size - 1))
+            return upper;
+        return Math.min(from + size - 1, upper);
+    }
+
+    /**
+     * Size of chunk to split the range into the given count of chunks (at least); the width of the range might not
+     * fit in long.
+     */
+    static long chunkSize(long lower, long upper, int chunks) {
+        final long width = upper - lower;
+        if (width < 0) {
+            //overflow: halves fit
+            final long half = (upper / 2 - lower / 2) / chunks;
+            return (half >= Long.MAX_VALUE / 2) ? Long.MAX_VALUE : half * 2 + 1;
+        }
+        return width / chunks + 1;
+    }
+
+    /**
+     * Parallel variant: split the range into chunks and process them in {@link #getParallel()} sessions.
+     * Every chunk is processed by {@link #processRange} (step by step, with its own adaptive step); the throttle
+     * is shared, so the limits apply to all sessions together.
+     */
+    protected void executeParallel(final DbInstance dbConn, final RunContext ctx, final ProcessedQuery query,
+                                   long lower, long upper, final Throttle throttle,
+                                   final ProgressTracker progress)
+            throws SQLException {
+        //everything done so far must be visible to the other sessions
+        commitStep(ctx, dbConn.getConnection(ctx));
 
-            ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed", totalChangedRows);
+        final int parallel = getParallel().intValue();
+        //chunk is never smaller than the step
+        final long initialStep = createStepControl().getStep();
+        final long chunkSize = Math.max(initialStep, chunkSize(lower, upper, parallel * CHUNKS_PER_SESSION));
+        ctx.report(STATEMENT_STEP, " parallel: %d sessions, chunk size %d", parallel, chunkSize);
+
+        final AtomicLong totalChangedRows = new AtomicLong();
+        final ParallelSessions<IdChunk> sessions = new ParallelSessions<IdChunk>(dbConn, ctx, parallel,
+                "migration-id-range", new ParallelSessions.Worker<IdChunk>() {
+                    public void process(Connection session, IdChunk chunk)
+                            throws SQLException {
+                        PreparedStatement st = null;
+                        try {
+                            st = session.prepareStatement(query.statement);
+                            totalChangedRows.addAndGet(
+                                    processRange(dbConn, ctx, session, st, query, chunk.lower, chunk.upper,
+                                            createStepControl(), throttle, progress));
+                        } finally {
+                            DbUtils.close(st);
+                        }
+                    }
+                });
+        final List<ParallelSessions.Failure<IdChunk>> failures;
+        try {
+            long chunkL = lower;
+            while (chunkL <= upper) {
+                final long chunkH = rangeEnd(chunkL, chunkSize, upper);
+                sessions.submit(new IdChunk(chunkL, chunkH));
+                if (chunkH >= upper)
+                    break;
+                chunkL = chunkH + 1;
+            }
         } finally {
-            DbUtils.close(st);
+            failures = sessions.finish();
+        }
+
+        ctx.report(STATEMENT_STEP, " migration finished, total %d rows changed in %d chunks",
+                totalChangedRows.get(), sessions.getSubmitted());
+        if (!failures.isEmpty()) {
+            //every failure has been already reported by the session
+            throw new ApplyAlterException(String.format("%d of %d chunks failed (steps committed before the failure "
+                    + "are kept), first: %s", failures.size(), sessions.getSubmitted(), failures.get(0).getItem()),
+                    failures.get(0).getError());
+        }
+    }
+
+    /**
+     * Part of the range processed by one session.
+     */
+    protected static class IdChunk {
+        final long lower;
+        final long upper;
+
+        IdChunk(long lower, long upper) {
+            this.lower = lower;
+            this.upper = upper;
         }
 
+        @Override
+        public String toString() {
+            return "chunk " + lower + "-" + upper;
+        }
     }
 
     //-----------------------------------------------------------------------------------------------------------------
@@ -177,6 +473,12 @@ public class MigrationIdRange extends AbstractMigration {
         b.append("fromid: ").append(fromid).append('/').append(fromidexpr).append("\n");
         b.append("toid: ").append(toid).append('/').append(toidexpr).append("\n");
         b.append("step: ").append(step).append("\n");
+        if (planner != null)
+            b.append("planner: ").append(planner).append(" ").append(idtable).append('.').append(idcolumn).append("\n");
+        if (parallel != null)
+            b.append("parallel: ").append(parallel).append("\n");
+        if (targetBatchMs != null)
+            b.append("target-batch-ms: ").append(targetBatchMs).append("\n");
         b.append("description: ").append(description).append("\n");
         return b.toString();
     }
@@ -0,0 +1,308 @@
+package ch.ips.g2.applyalter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static ch.ips.g2.applyalter.ReportLevel.DETAIL;
+import static ch.ips.g2.applyalter.ReportLevel.STATEMENT_STEP;
+
+/**
+ * Migration that walks the table in key order (keyset pagination): every batch reads the next {@link #getStep()}
+ * keys after the last key of the previous batch and the main statement is executed for the keys between.
+ * Unlike {@link MigrationIdRange}, keys might be composite and of any type (varchar, UUID, ...); unlike
+ * {@link MigrationIdList}, no temporary tables are needed.
+ * <p/>
+ * The placeholder in the statement is replaced by condition on the key columns, for example
+ * "<code>(a &gt; ? or (a = ? and b &gt; ?)) and (a &lt; ? or (a = ? and b &lt;= ?))</code>". Row value comparison
+ * <code>(a,b) &gt; (?,?)</code> is not used, because it is not supported by DB2 and Oracle.
+ * Key columns must be NOT NULL and should be indexed (primary key, typically).
+ *
+ * @version $Id$
+ */
+@XStreamAlias("migration-keyset")
+public class MigrationKeyset extends AbstractMigration {
+    public static final String DEFAULT_PLACEHOLDER = "KEY_RANGE";
+
+    private String keytable;
+    private String keycolumns;
+    private String keyfilter;
+
+    @Override
+    protected String getDefaultPlaceholder() {
+        return DEFAULT_PLACEHOLDER;
+    }
+
+    /**
+     * Table to walk. Might contain alias, if the key columns are qualified ("orders o").
+     */
+    public String getKeytable() {
+        return keytable;
+    }
+
+    public void setKeytable(String keytable) {
+        this.keytable = keytable;
+    }
+
+    /**
+     * Key columns, delimited by commas; the order defines the walk order.
+     */
+    public String getKeycolumns() {
+        return keycolumns;
+    }
+
+    public void setKeycolumns(String keycolumns) {
+        this.keycolumns = keycolumns;
+    }
+
+    /**
+     * Optional condition: only the matching rows of {@link #getKeytable()} are walked.
+     * Note that it only affects the batch bounds: the statement should contain the same condition.
+     */
+    public String getKeyfilter() {
+        return keyfilter;
+    }
+
+    public void setKeyfilter(String keyfilter) {
+        this.keyfilter = keyfilter;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Check validity of this statement; raise exception if the alterscript is invalid.
+     *
+     * @throws ApplyAlterException invalid statement, invalid alterscript
+     */
+    public void checkParameters() {
+        if (statement == null)
+            throw new ApplyAlterException("invalid apply script: missing \"statement\" for " + this);
+        if (keytable == null)
+            throw new ApplyAlterException("invalid apply script: missing \"keytable\" for " + this);
+        if (keycolumns == null || keycolumns.trim().length() < 1)
+            throw new ApplyAlterException("invalid apply script: missing \"keycolumns\" for " + this);
+        if (step == null || step.longValue() < 1)
+            throw new ApplyAlterException("invalid apply script: missing or invalid \"step\" for " + this);
+    }
+
+    protected String[] getKeyColumnArray() {
+        String[] columns = keycolumns.split(",");
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = columns[i].trim();
+        }
+        return columns;
+    }
+
+    /**
+     * Lexicographic comparison of the key columns with parameters:
+     * <code>(a,b) &gt; (?,?)</code> is expanded to <code>(a &gt; ? or (a = ? and b &gt; ?))</code>.
+     *
+     * @param columns   key columns
+     * @param strictOp  operator for all but the last column: "&gt;" or "&lt;"
+     * @param lastOp    operator for the last column (to support "&lt;=")
+     * @return condition
+     */
+    static String keyCondition(String[] columns, String strictOp, String lastOp) {
+        StringBuilder b = new StringBuilder("(");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                b.append(" or (");
+            for (int j = 0; j < i; j++) {
+                b.append(columns[j]).append(" = ? and ");
+            }
+            b.append(columns[i]).append(' ').append(i == columns.length - 1 ? lastOp : strictOp).append(" ?");
+            if (i > 0)
+                b.append(')');
+        }
+        b.append(')');
+        return b.toString();
+    }
+
+    /**
+     * Bind key to the condition made by {@link #keyCondition}.
+     *
+     * @return next parameter index
+     */
+    static int bindKeyCondition(PreparedStatement st, int paramIdx, Object[] key)
+            throws SQLException {
+        for (int i = 0; i < key.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                st.setObject(paramIdx++, key[j]);
+            }
+        }
+        return paramIdx;
+    }
+
+    /**
+     * Query for the keys of the next batch.
+     *
+     * @param first first batch: there is no lower bound
+     */
+    protected String makeKeyQuery(DbInstance dbConn, String[] columns, boolean first, long step) {
+        StringBuilder b = new StringBuilder("select ").append(keycolumns).append(" from ").append(keytable);
+        String where = first ? null : keyCondition(columns, ">", ">");
+        if (keyfilter != null && keyfilter.trim().length() > 0) {
+            where = (where == null) ? "(" + keyfilter.trim() + ")" : where + " and (" + keyfilter.trim() + ")";
+        }
+        if (where != null)
+            b.append(" where ").append(where);
+        b.append(" order by ").append(keycolumns);
+        return dbConn.limitRows(b.toString(), step);
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public void execute(DbInstance dbConn, RunContext ctx, Map<String, byte[]> datafiles)
+            throws ApplyAlterException, SQLException {
+        checkParameters();
+        final Connection connection = dbConn.getConnection(ctx);
+        final String[] columns = getKeyColumnArray();
+
+        //main statement: the first batch has no lower bound
+        final String upperCondition = keyCondition(columns, "<", "<=");
+        ProcessedQuery firstQuery = processQuery(getStatement(), upperCondition);
+        ProcessedQuery nextQuery = processQuery(getStatement(),
+                keyCondition(columns, ">", ">") + " and " + upperCondition);
+        if (firstQuery.replacements < 1) {
+            throw new ApplyAlterException("invalid alter script: no %s in the query; %s", getPlaceholder() == null
+                    ? getDefaultPlaceholder() : getPlaceholder(), this.toString());
+        }
+
+        final AdaptiveStep stepControl = createStepControl();
+        ctx.report(STATEMENT_STEP, "key query: %s", makeKeyQuery(dbConn, columns, false, stepControl.getStep()));
+        ctx.report(STATEMENT_STEP, "migration query: %s", nextQuery.statement);
+
+        PreparedStatement stFirstKeys = null;
+        PreparedStatement stNextKeys = null;
+        PreparedStatement stFirst = null;
+        PreparedStatement stNext = null;
+        final Throttle throttle = createThrottle(dbConn, ctx);
+        final BatchLog batchLog = createBatchLog(dbConn, ctx);
+        //number of keys is unknown: no ETA, just rates
+        final ProgressTracker progress = startProgress(ctx, -1);
+        boolean done = false;
+        try {
+            stFirst = connection.prepareStatement(firstQuery.statement);
+            stNext = connection.prepareStatement(nextQuery.statement);
+
+            long preparedStep = -1;
+            Object[] lastKey = null;
+            int batchCount = 0;
+            long updatedCount = 0;
+            long processedCount = 0;
+            while (true) {
+                if (stepControl.getStep() != preparedStep) {
+                    //step is part of the SQL text
+                    preparedStep = stepControl.getStep();
+                    DbUtils.close(stFirstKeys);
+                    DbUtils.close(stNextKeys);
+                    stFirstKeys = connection.prepareStatement(makeKeyQuery(dbConn, columns, true, preparedStep));
+                    stNextKeys = connection.prepareStatement(makeKeyQuery(dbConn, columns, false, preparedStep));
+                }
+                final long batchStart = System.currentTimeMillis();
+
+                //batch, step 1: find the upper bound
+                final PreparedStatement stKeys;
+                if (lastKey == null) {
+                    stKeys = stFirstKeys;
+                } else {
+                    stKeys = stNextKeys;
+                    bindKeyCondition(stKeys, 1, lastKey);
+                }
+                Object[] upperKey = new Object[columns.length];
+                final int keyCount = readLastKey(stKeys, upperKey);
+                if (keyCount < 1) {
+                    //end
+                    break;
+                }
+                batchCount++;
+
+                //step 2: the migration itself
+                final PreparedStatement st = (lastKey == null) ? stFirst : stNext;
+                final ProcessedQuery query = (lastKey == null) ? firstQuery : nextQuery;
+                int paramIdx = 1;
+                for (int i = 0; i < query.replacements; i++) {
+                    if (lastKey != null)
+                        paramIdx = bindKeyCondition(st, paramIdx, lastKey);
+                    paramIdx = bindKeyCondition(st, paramIdx, upperKey);
+                }
+                final int updated = st.executeUpdate();
+                updatedCount += updated;
+                processedCount += keyCount;
+
+                //the most important thing: commit
+                commitBatch(ctx, connection, batchLog, lastKey == null ? null : Arrays.asList(lastKey),
+                        Arrays.asList(upperKey), keyCount, updated, batchStart);
+
+                final long batchMs = System.currentTimeMillis() - batchStart;
+                ctx.report(DETAIL, "  batch %d: %d of %d updated, up to key %s (%d ms)",
+                        batchCount, updated, keyCount, Arrays.asList(upperKey), batchMs);
+                stepControl.update(keyCount, batchMs);
+                progress.batchDone(ctx, keyCount, updated);
+                throttle.acquire(ctx, updated);
+                lastKey = upperKey;
+            }
+
+            ctx.report(STATEMENT_STEP, " migration finished, total %d rows updated in %d batches (%d keys processed)",
+                    updatedCount, batchCount, processedCount);
+            done = true;
+        } finally {
+            DbUtils.close(stFirstKeys);
+            DbUtils.close(stNextKeys);
+            DbUtils.close(stFirst);
+            DbUtils.close(stNext);
+            batchLog.finish(this, ctx, connection, done);
+            throttle.close(ctx);
+            progress.finish(ctx);
+        }
+    }
+
+    /**
+     * Execute key query and remember the last key.
+     *
+     * @param stKeys key query, ready
+     * @param key    target for the last key
+     * @return number of keys
+     */
+    private int readLastKey(PreparedStatement stKeys, Object[] key)
+            throws SQLException {
+        ResultSet rs = null;
+        try {
+            rs = stKeys.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                count++;
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = rs.getObject(i + 1);
+                }
+            }
+            return count;
+        } finally {
+            DbUtils.close(null, rs);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(this.getClass().getSimpleName()).append(": ");
+        b.append("logid: ").append(logid).append("\n");
+        b.append("statement:").append(" ").append(statement).append("\n");
+        b.append("keytable: ").append(keytable).append("\n");
+        b.append("keycolumns: ").append(keycolumns).append("\n");
+        if (keyfilter != null)
+            b.append("keyfilter: ").append(keyfilter).append("\n");
+        b.append("step: ").append(step).append("\n");
+        if (targetBatchMs != null)
+            b.append("target-batch-ms: ").append(targetBatchMs).append("\n");
+        b.append("description: ").append(description).append("\n");
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,176 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Simple <code>insert into t (a, b) values (?, ?)</code> rewritten to insert several CSV rows by one execution
+ * (see {@link DbInstance#makeMultiRowInsert(String, String, int)}). Rows are buffered until there is enough of them
+ * for the full-width statement; the rest is inserted by {@link #flush()} using the tail statement. Both statements
+ * are prepared once (the tail one again only when the size of the tail changes).
+ * <p/>
+ * Not thread safe: one instance per connection.
+ *
+ * @version $Id$
+ */
+public class MultiRowInsert {
+    private static final Pattern INSERT_PATTERN = Pattern.compile(
+            "\\s*insert\\s+into\\s+(.+?)\\s+values\\s*\\((.*)\\)\\s*;?\\s*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final DbInstance dbConn;
+    private final Connection connection;
+    private final String target;
+    private final String tuple;
+    private final CsvConverter[] converters;
+    private final String[] headRow;
+    private final int width;
+
+    private final String[][] buffer;
+    private final int[] bufferRowNumbers;
+    private int buffered;
+    private PreparedStatement stFull;
+    private PreparedStatement stTail;
+    private int tailSize;
+
+    /**
+     * Prepare the rewrite.
+     *
+     * @param dbConn     database instance (dialect)
+     * @param connection connection
+     * @param sql        the original statement
+     * @param converters converters of the parameters
+     * @param headRow    CSV header (for error messages)
+     * @param width      number of rows per execution
+     * @throws ApplyAlterException the statement cannot be rewritten
+     */
+    public MultiRowInsert(DbInstance dbConn, Connection connection, String sql, CsvConverter[] converters,
+                          String[] headRow, int width) {
+        final Matcher m = INSERT_PATTERN.matcher(sql);
+        if (!m.matches())
+            throw new ApplyAlterException("rows-per-insert requires simple \"insert into ... values (...)\": " + sql);
+        this.target = m.group(1).trim();
+        this.tuple = m.group(2).trim();
+        if (countParameters(target) != 0 || countParameters(tuple) != converters.length)
+            throw new ApplyAlterException("rows-per-insert: values must contain exactly %d parameters: %s",
+                    converters.length, sql);
+        final int maxWidth = Math.max(1, dbConn.getMaxStatementParameters() / Math.max(1, converters.length));
+        this.width = Math.min(width, maxWidth);
+
+        this.dbConn = dbConn;
+        this.connection = connection;
+        this.converters = converters;
+        this.headRow = headRow;
+        this.buffer = new String[this.width][];
+        this.bufferRowNumbers = new int[this.width];
+    }
+
+    /**
+     * Number of question marks outside of string literals.
+     */
+    static int countParameters(String sql) {
+        int count = 0;
+        boolean literal = false;
+        for (int i = 0; i < sql.length(); i++) {
+            final char c = sql.charAt(i);
+            if (c == '\'')
+                literal = !literal;
+            else if (c == '?' && !literal)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Rows per execution, might be less than requested because of the parameter limit.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * The full-width statement.
+     */
+    public String getSql() {
+        return dbConn.makeMultiRowInsert(target, tuple, width);
+    }
+
+    /**
+     * Add row; the full-width statement is executed when there is enough rows.
+     *
+     * @param row       CSV values
+     * @param rowNumber data row number (for error messages)
+     * @return number of inserted rows, zero if the row is just buffered
+     * @throws SQLException insert failed
+     */
+    public int add(String[] row, int rowNumber)
+            throws SQLException {
+        buffer[buffered] = row;
+        bufferRowNumbers[buffered] = rowNumber;
+        buffered++;
+        if (buffered < width)
+            return 0;
+        if (stFull == null) {
+            stFull = connection.prepareStatement(getSql());
+        }
+        return execute(stFull);
+    }
+
+    /**
+     * Insert all the buffered rows (called before commit and at the end).
+     *
+     * @return number of inserted rows
+     * @throws SQLException insert failed
+     */
+    public int flush()
+            throws SQLException {
+        if (buffered == 0)
+            return 0;
+        if (stTail == null || tailSize != buffered) {
+            DbUtils.close(stTail);
+            stTail = connection.prepareStatement(dbConn.makeMultiRowInsert(target, tuple, buffered));
+            tailSize = buffered;
+        }
+        return execute(stTail);
+    }
+
+    private int execute(PreparedStatement st)
+            throws SQLException {
+        int paramIdx = 1;
+        for (int r = 0; r < buffered; r++) {
+            final String[] row = buffer[r];
+            for (int i = 0; i < converters.length; i++) {
+                try {
+                    converters[i].set(st, paramIdx++, row[i]);
+                } catch (IllegalArgumentException e) {
+                    throw new ApplyAlterException("invalid CSV value in data row %d, column %s: %s", e,
+                            bufferRowNumbers[r], headRow[i], e.getMessage());
+                }
+            }
+        }
+        final int first = bufferRowNumbers[0];
+        final int count = buffered;
+        buffered = 0;
+        try {
+            return st.executeUpdate();
+        } catch (SQLException e) {
+            //keep SQLSTATE for ignore-sqlstate
+            throw new SQLException(String.format("insert of CSV data rows %d-%d failed: %s", first, first + count - 1,
+                    e.getMessage()), e.getSQLState(), e.getErrorCode(), e);
+        }
+    }
+
+    /**
+     * Close the statements; buffered rows are discarded.
+     */
+    public void close() {
+        buffered = 0;
+        DbUtils.close(stFull);
+        DbUtils.close(stTail);
+        stFull = null;
+        stTail = null;
+    }
+
+}
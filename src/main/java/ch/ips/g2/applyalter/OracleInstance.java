@@ -3,6 +3,8 @@ package ch.ips.g2.applyalter;
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 /**
@@ -73,7 +75,7 @@ public class OracleInstance extends DbInstance {
     }
 
     @Override
-    public void setSchema(String schema)
+    protected void setSchema(Connection con, String schema)
             throws ApplyAlterException {
         try {
             DbUtils.executeUpdate(con, "ALTER SESSION SET CURRENT_SCHEMA = " + schema);
@@ -82,4 +84,155 @@ public class OracleInstance extends DbInstance {
         }
     }
 
-}
\ No newline at end of file
+    //--------------------------------------------------------------------------------------------------
+
+    /**
+     * Global temporary tables are regular schema objects (only the rows are private).
+     */
+    @Override
+    public String makeTempTableName(String baseName) {
+        return baseName;
+    }
+
+    /**
+     * Oracle global temporary table. Note that DDL statements commit implicitly.
+     */
+    @Override
+    public String createTempTable(RunContext ctx, Connection con, String baseName, String query, String indexColumns)
+            throws SQLException {
+        final String tableName = makeTempTableName(baseName);
+        //replace the table left by previous run
+        dropTempTable(ctx, con, tableName);
+
+        String sql = String.format("create global temporary table %s on commit preserve rows"
+                + " as select * from (%s) where 1 = 0", tableName, query);
+        ctx.report(ReportLevel.DETAIL, "creating temporary table by query: %s", sql);
+        DbUtils.executeUpdate(con, sql);
+
+        if (indexColumns != null) {
+            String indexSql = String.format("create index %1$s_IDX on %1$s (%2$s)", tableName, indexColumns);
+            ctx.report(ReportLevel.DETAIL, "  creating index: %s", indexSql);
+            DbUtils.executeUpdate(con, indexSql);
+        }
+        return tableName;
+    }
+
+    @Override
+    public boolean isTempTableCommitting() {
+        return true;
+    }
+
+    /**
+     * Base name suffixed by the session id (SID): unique among the concurrent sessions, and a table left by a killed
+     * session is replaced by the next one with the same SID.
+     */
+    @Override
+    public String makeSessionTempTableName(Connection con, String baseName)
+            throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select sys_context('USERENV', 'SID') from dual");
+            rs = st.executeQuery();
+            rs.next();
+            return baseName + "_" + rs.getString(1);
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Global temporary table must be truncated before drop (ORA-14452), errors are ignored (no such table).
+     */
+    @Override
+    public void dropTempTable(RunContext ctx, Connection con, String tableName) {
+        try {
+            DbUtils.executeUpdate(con, "truncate table " + tableName);
+            DbUtils.executeUpdate(con, "drop table " + tableName);
+            ctx.report(ReportLevel.DETAIL, "  dropped temporary table %s", tableName);
+        } catch (SQLException e) {
+            //no such table
+        }
+    }
+
+    /**
+     * Oracle has no multi-row VALUES: <code>INSERT ALL INTO t VALUES (...) INTO t VALUES (...) SELECT * FROM dual</code>.
+     */
+    @Override
+    public String makeMultiRowInsert(String target, String tuple, int rows) {
+        StringBuilder b = new StringBuilder(rows * (target.length() + tuple.length() + 16) + 30);
+        b.append("insert all");
+        for (int i = 0; i < rows; i++) {
+            b.append(" into ").append(target).append(" values (").append(tuple).append(')');
+        }
+        return b.append(" select * from dual").toString();
+    }
+
+    /**
+     * ROWNUM works in all Oracle versions (fetch first is supported since 12c).
+     */
+    @Override
+    public String limitRows(String query, long rows) {
+        return String.format("select * from (%s) where rownum <= %d", query, rows);
+    }
+
+    /**
+     * Data Guard lag is visible only on the standby (v$dataguard_stats): use lag-probe on a replica.
+     */
+    @Override
+    public String getReplicationLagQuery() {
+        return null;
+    }
+
+    /**
+     * ORA-01795: maximum number of expressions in a list is 1000.
+     */
+    @Override
+    public int getMaxIdListSize() {
+        return 1000;
+    }
+
+    /**
+     * Index definition is taken from <code>DBMS_METADATA</code>.
+     */
+    @Override
+    public BulkPrepare.Change makeIndexRebuild(Connection con, String schema, String index)
+            throws SQLException {
+        final int dot = index.indexOf('.');
+        final String indSchema = (dot > 0 ? index.substring(0, dot) : schema).trim().toUpperCase();
+        final String indName = index.substring(dot + 1).trim().toUpperCase();
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select dbms_metadata.get_ddl('INDEX', ?, ?) from dual");
+            st.setString(1, indName);
+            st.setString(2, indSchema);
+            rs = st.executeQuery();
+            rs.next();
+            return new BulkPrepare.Change(BulkPrepare.PHASE_PARALLEL)
+                    .apply(String.format("drop index %s.%s", indSchema, indName))
+                    .restore(rs.getString(1).trim());
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    @Override
+    public BulkPrepare.Change makeForeignKeyBypass(Connection con, String table, String name)
+            throws SQLException {
+        return new BulkPrepare.Change(BulkPrepare.PHASE_SERIAL)
+                .apply(String.format("alter table %s disable constraint %s", table, name))
+                .restore(String.format("alter table %s enable validate constraint %s", table, name));
+    }
+
+    /**
+     * <code>NOLOGGING</code>: helps only direct-path inserts.
+     */
+    @Override
+    public BulkPrepare.Change makeUnlogged(String table) {
+        return new BulkPrepare.Change(BulkPrepare.PHASE_SERIAL)
+                .apply("alter table " + table + " nologging")
+                .restore("alter table " + table + " logging");
+    }
+
+}
@@ -0,0 +1,205 @@
+package ch.ips.g2.applyalter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Work items processed by several database sessions in parallel. Every session has its own thread and connection
+ * (see {@link DbInstance#openSession(RunContext)}) and takes the next item from the shared queue as soon as it
+ * finishes the previous one, so fast sessions simply process more items.
+ * <p/>
+ * Failure of one item does not stop the others: the session is rolled back, the failure is recorded and the
+ * session continues with the next item. Worker is responsible for committing its work (typically
+ * by {@link AbstractStatement#commitStep(RunContext, java.sql.Connection)}).
+ * <p/>
+ * Usage: create, {@link #submit(Object)} all items, then always call {@link #finish()} (in finally clause).
+ *
+ * @version $Id$
+ */
+public class ParallelSessions<T> {
+
+    /**
+     * Processing of a single work item.
+     */
+    public interface Worker<T> {
+        /**
+         * Process one item.
+         *
+         * @param session database connection of the current session
+         * @param item    work item
+         * @throws SQLException any database error: item is recorded as failed
+         */
+        void process(Connection session, T item)
+                throws SQLException;
+    }
+
+    /**
+     * Failed work item.
+     */
+    public static class Failure<T> {
+        private final T item;
+        private final Throwable error;
+
+        public Failure(T item, Throwable error) {
+            this.item = item;
+            this.error = error;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Marker of the end of queue: every session gets one.
+     */
+    private static final Object END = new Object();
+
+    private final RunContext ctx;
+    private final Worker<T> worker;
+    private final BlockingQueue<Object> queue;
+    private final List<Connection> sessions = new ArrayList<Connection>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final List<Failure<T>> failures = Collections.synchronizedList(new ArrayList<Failure<T>>());
+    private volatile boolean cancelled;
+    private int submitted;
+
+    /**
+     * Open the sessions and start the threads.
+     *
+     * @param db       database instance
+     * @param ctx      run context (must be thread safe)
+     * @param parallel number of sessions
+     * @param name     name used in thread names
+     * @param worker   the processing
+     * @throws ApplyAlterException failed to open the sessions
+     */
+    public ParallelSessions(DbInstance db, RunContext ctx, int parallel, String name, Worker<T> worker)
+            throws ApplyAlterException {
+        this.ctx = ctx;
+        this.worker = worker;
+        //small queue: producer should not run too far ahead
+        this.queue = new ArrayBlockingQueue<Object>(2 * parallel);
+
+        try {
+            for (int i = 0; i < parallel; i++) {
+                sessions.add(db.openSession(ctx));
+            }
+        } catch (ApplyAlterException e) {
+            closeSessions();
+            throw e;
+        }
+        ctx.report(ReportLevel.STATEMENT_STEP, "opened %d parallel sessions", parallel);
+
+        for (int i = 0; i < parallel; i++) {
+            final Connection session = sessions.get(i);
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    processQueue(session);
+                }
+            }, "applyalter-" + name + "-" + (i + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Add item to the queue; blocks while the queue is full.
+     */
+    public void submit(T item) {
+        try {
+            queue.put(item);
+            submitted++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApplyAlterException("interrupted while waiting for parallel sessions", e);
+        }
+    }
+
+    /**
+     * Number of items submitted so far.
+     */
+    public int getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Skip all items not yet started (used when producer fails). Running items are finished.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    /**
+     * Wait for all items, stop the threads and close sessions.
+     *
+     * @return failed items, empty list if everything succeeded
+     */
+    public List<Failure<T>> finish() {
+        try {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new ApplyAlterException("interrupted while waiting for parallel sessions", e);
+        } finally {
+            closeSessions();
+        }
+        synchronized (failures) {
+            return new ArrayList<Failure<T>>(failures);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processQueue(Connection session) {
+        while (true) {
+            final Object next;
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == END)
+                return;
+            if (cancelled)
+                continue;
+
+            final T item = (T) next;
+            try {
+                worker.process(session, item);
+            } catch (Throwable e) {
+                failures.add(new Failure<T>(item, e));
+                ctx.report(ReportLevel.ERROR, "%s failed: %s", item, e.getMessage());
+                try {
+                    session.rollback();
+                } catch (SQLException e1) {
+                    //ignore, the original error is recorded
+                }
+            }
+        }
+    }
+
+    private void closeSessions() {
+        for (Connection session : sessions) {
+            DbUtils.close(session);
+        }
+        sessions.clear();
+    }
+
+}
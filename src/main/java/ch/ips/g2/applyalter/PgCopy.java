@@ -0,0 +1,222 @@
+package ch.ips.g2.applyalter;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PostgreSQL <code>COPY ... FROM STDIN</code> of CSV rows, used by {@link CSV} in copy mode.
+ * Rows are written in chunks: every chunk is one COPY command, so the caller can commit between them.
+ * <p/>
+ * The rows are not passed through verbatim: every value is re-quoted according to the column type, so that
+ * the NULL semantics is the same as in the statement mode (empty string column is empty string, empty value of other
+ * types is NULL) and binary values get the bytea hex format.
+ * <p/>
+ * This is the only class using the PostgreSQL driver API; it is loaded only in copy mode, so the driver is not needed
+ * for other databases.
+ *
+ * @version $Id$
+ */
+public class PgCopy {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_CHARS = 64 * 1024;
+    private static final Pattern LINE_PATTERN = Pattern.compile("COPY [^,]*, line (\\d+)");
+
+    private final CopyManager copyManager;
+    private final String sql;
+    private final CsvConverter[] converters;
+    private final StringBuilder buffer = new StringBuilder(BUFFER_CHARS + 1024);
+    private CopyIn copyIn;
+    private int chunkRows;
+
+    /**
+     * Prepare the copy.
+     *
+     * @param con     PostgreSQL connection
+     * @param table   target table
+     * @param columns target columns, in the order of CSV values
+     * @throws SQLException        failed to read the column types
+     * @throws ApplyAlterException not a PostgreSQL connection
+     */
+    public PgCopy(Connection con, String table, String[] columns)
+            throws SQLException {
+        if (!con.isWrapperFor(PGConnection.class))
+            throw new ApplyAlterException("COPY is supported only by PostgreSQL driver, connection is %s",
+                    con.getClass().getName());
+        this.copyManager = con.unwrap(PGConnection.class).getCopyAPI();
+
+        final StringBuilder cols = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0)
+                cols.append(", ");
+            cols.append(columns[i].trim());
+        }
+        this.sql = String.format("copy %s (%s) from stdin with (format csv, encoding 'UTF8')", table, cols);
+        this.converters = columnConverters(con, table, cols.toString(), columns);
+    }
+
+    /**
+     * The COPY command.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Converters of the target columns; types are read from the table itself (COPY has no parameters).
+     */
+    private static CsvConverter[] columnConverters(Connection con, String table, String cols, String[] names)
+            throws SQLException {
+        Statement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.createStatement();
+            rs = st.executeQuery(String.format("select %s from %s where 1 = 0", cols, table));
+            final ResultSetMetaData meta = rs.getMetaData();
+            final CsvConverter[] converters = new CsvConverter[names.length];
+            for (int i = 0; i < names.length; i++) {
+                converters[i] = CsvConverter.forType(meta.getColumnType(i + 1));
+                if (converters[i] == null) {
+                    //anything else is parsed by the server from text
+                    converters[i] = CsvConverter.forType(java.sql.Types.OTHER);
+                }
+            }
+            return converters;
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Add row to the current chunk; the first row starts new COPY.
+     *
+     * @param row CSV values, at least as many as columns
+     * @throws SQLException             COPY failed
+     * @throws IllegalArgumentException invalid value; message does not contain the row
+     */
+    public void writeRow(String[] row)
+            throws SQLException {
+        for (int i = 0; i < converters.length; i++) {
+            if (i > 0)
+                buffer.append(',');
+            final String text;
+            try {
+                text = converters[i].copyText(row[i]);
+            } catch (IllegalArgumentException e) {
+                throw new ColumnException(i, e);
+            }
+            if (text != null) {
+                //always quoted: quoted empty string is not NULL
+                buffer.append('"');
+                for (int j = 0; j < text.length(); j++) {
+                    final char c = text.charAt(j);
+                    if (c == '"')
+                        buffer.append('"');
+                    buffer.append(c);
+                }
+                buffer.append('"');
+            }
+        }
+        buffer.append('\n');
+        chunkRows++;
+        if (buffer.length() >= BUFFER_CHARS) {
+            flush();
+        }
+    }
+
+    /**
+     * Number of rows in the current chunk.
+     */
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    /**
+     * Finish the current chunk.
+     *
+     * @return number of rows copied by the server
+     * @throws SQLException COPY failed
+     */
+    public long endChunk()
+            throws SQLException {
+        if (chunkRows == 0)
+            return 0;
+        flush();
+        final long copied = copyIn.endCopy();
+        copyIn = null;
+        chunkRows = 0;
+        return copied;
+    }
+
+    /**
+     * Abort the running COPY, if any (used on error; the transaction is rolled back anyway).
+     */
+    public void cancel() {
+        buffer.setLength(0);
+        chunkRows = 0;
+        if (copyIn != null && copyIn.isActive()) {
+            try {
+                copyIn.cancelCopy();
+            } catch (SQLException e) {
+                //ignore, the original error is more important
+            }
+        }
+        copyIn = null;
+    }
+
+    private void flush()
+            throws SQLException {
+        if (copyIn == null) {
+            copyIn = copyManager.copyIn(sql);
+        }
+        final byte[] bytes = buffer.toString().getBytes(UTF8);
+        buffer.setLength(0);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Line number of the failed row in the chunk, as reported by the server
+     * (<code>CONTEXT: COPY table, line 3, column ...</code>).
+     *
+     * @return line number (1 = first row of the chunk), -1 if unknown
+     */
+    static int getErrorLine(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            final String msg = t.getMessage();
+            if (msg == null)
+                continue;
+            final Matcher m = LINE_PATTERN.matcher(msg);
+            if (m.find())
+                return Integer.parseInt(m.group(1));
+        }
+        return -1;
+    }
+
+    /**
+     * Invalid value in the CSV, with the column index.
+     */
+    public static class ColumnException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private final int column;
+
+        ColumnException(int column, IllegalArgumentException cause) {
+            super(cause.getMessage(), cause);
+            this.column = column;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+    }
+
+}
@@ -6,7 +6,10 @@ import org.apache.commons.io.IOUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.sql.Array;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 
@@ -84,7 +87,7 @@ public class PgInstance extends DbInstance {
     }
 
     @Override
-    public void setSchema(String schema)
+    protected void setSchema(Connection con, String schema)
             throws ApplyAlterException {
         try {
             DbUtils.executeUpdate(con, "set search_path to " + schema + ",public");
@@ -118,6 +121,105 @@ public class PgInstance extends DbInstance {
         return "public.applyalter_log";
     }
 
+    @Override
+    public String getBatchLogTable() {
+        return "public.applyalter_batch_log";
+    }
+
+    @Override
+    public String getCsvRowsTable() {
+        return "public.applyalter_csv_rows";
+    }
+
+    @Override
+    public String getBulkRestoreTable() {
+        return "public.applyalter_bulk_restore";
+    }
+
+
+    /**
+     * Temporary tables are in the session-specific schema pg_temp.
+     */
+    @Override
+    public String makeTempTableName(String baseName) {
+        return "pg_temp." + baseName;
+    }
+
+    /**
+     * PostgreSQL temporary table: it is not WAL-logged and it is visible only for this session.
+     */
+    @Override
+    public String createTempTable(RunContext ctx, Connection con, String baseName, String query, String indexColumns)
+            throws SQLException {
+        final String tableName = makeTempTableName(baseName);
+        DbUtils.executeUpdate(con, "drop table if exists " + tableName);
+
+        String sql = String.format("create temporary table %s on commit preserve rows as select * from (%s) q"
+                + " with no data", baseName, query);
+        ctx.report(ReportLevel.DETAIL, "creating temporary table by query: %s", sql);
+        DbUtils.executeUpdate(con, sql);
+
+        //index name cannot contain schema: it is always in the schema of the table
+        if (indexColumns != null) {
+            String indexSql = String.format("create index %s_IDX on %s (%s)", baseName, tableName, indexColumns);
+            ctx.report(ReportLevel.DETAIL, "  creating index: %s", indexSql);
+            DbUtils.executeUpdate(con, indexSql);
+        }
+        return tableName;
+    }
+
+    /**
+     * Autovacuum never analyzes temporary tables; without statistics, the planner would guess.
+     */
+    @Override
+    public void analyzeTempTable(RunContext ctx, Connection con, String tableName)
+            throws SQLException {
+        ctx.report(ReportLevel.DETAIL, "  analyze %s", tableName);
+        DbUtils.executeUpdate(con, "analyze " + tableName);
+    }
+
+    @Override
+    public String limitRows(String query, long rows) {
+        return String.format("%s limit %d", query, rows);
+    }
+
+    /**
+     * Replay lag of the slowest streaming replica (PostgreSQL 10+).
+     */
+    @Override
+    public String getReplicationLagQuery() {
+        return "select coalesce(extract(epoch from max(replay_lag)), 0) from pg_stat_replication";
+    }
+
+    /**
+     * Array parameter has no size limit.
+     */
+    @Override
+    public int getMaxIdListSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Single array parameter: the statement does not depend on the size.
+     */
+    @Override
+    public String makeIdListExpression(int size) {
+        return "(select unnest(cast(? as bigint[])))";
+    }
+
+    @Override
+    public int bindIdList(Connection con, PreparedStatement st, int paramIdx, long[] ids, int from, int count,
+                          int size)
+            throws SQLException {
+        Long[] batch = new Long[count];
+        for (int i = 0; i < count; i++) {
+            batch[i] = ids[from + i];
+        }
+        Array array = con.createArrayOf("int8", batch);
+        st.setArray(paramIdx++, array);
+        return paramIdx;
+    }
+
 
     /**
      * Load and parse <a href="http://www.postgresql.org/docs/current/static/libpq-pgpass.html">pgpass file</a>, try to find
@@ -196,5 +298,88 @@ public class PgInstance extends DbInstance {
         return null;
     }
 
+    /**
+     * PostgreSQL before 15 has no MERGE: <code>INSERT ... ON CONFLICT</code>, requires unique constraint on the keys.
+     */
+    @Override
+    public String makeMergeSql(String target, String source, List<String> columns, List<String> keys) {
+        StringBuilder b = new StringBuilder("insert into ").append(target).append(" (");
+        appendList(b, "", columns);
+        b.append(") select ");
+        appendList(b, "", columns);
+        b.append(" from ").append(source).append(" on conflict (");
+        appendList(b, "", keys);
+        b.append(") do ");
+        String separator = "update set ";
+        for (String column : columns) {
+            if (!keys.contains(column)) {
+                b.append(separator).append(column).append(" = excluded.").append(column);
+                separator = ", ";
+            }
+        }
+        if (separator.startsWith("update")) {
+            //only key columns
+            b.append("nothing");
+        }
+        return b.toString();
+    }
+
+    /**
+     * Index definition is taken from <code>pg_get_indexdef</code>; name is resolved by the search path.
+     */
+    @Override
+    public BulkPrepare.Change makeIndexRebuild(Connection con, String schema, String index)
+            throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select pg_get_indexdef(cast(? as regclass))");
+            st.setString(1, index);
+            rs = st.executeQuery();
+            rs.next();
+            return new BulkPrepare.Change(BulkPrepare.PHASE_PARALLEL)
+                    .apply("drop index " + index)
+                    .restore(rs.getString(1));
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * Existing constraint cannot be switched off: it is dropped and added back as <code>NOT VALID</code>, then
+     * validated (without blocking writes).
+     */
+    @Override
+    public BulkPrepare.Change makeForeignKeyBypass(Connection con, String table, String name)
+            throws SQLException {
+        PreparedStatement st = null;
+        ResultSet rs = null;
+        try {
+            st = con.prepareStatement("select pg_get_constraintdef(oid) from pg_constraint"
+                    + " where conname = ? and conrelid = cast(? as regclass)");
+            st.setString(1, name);
+            st.setString(2, table);
+            rs = st.executeQuery();
+            if (!rs.next())
+                throw new ApplyAlterException("bulk-prepare: constraint %s of %s not found", name, table);
+            return new BulkPrepare.Change(BulkPrepare.PHASE_SERIAL)
+                    .apply(String.format("alter table %s drop constraint %s", table, name))
+                    .restore(String.format("alter table %s add constraint %s %s not valid", table, name,
+                            rs.getString(1)))
+                    .restore(String.format("alter table %s validate constraint %s", table, name));
+        } finally {
+            DbUtils.close(st, rs);
+        }
+    }
+
+    /**
+     * <code>SET UNLOGGED</code>; note that <code>SET LOGGED</code> writes the whole table to WAL.
+     */
+    @Override
+    public BulkPrepare.Change makeUnlogged(String table) {
+        return new BulkPrepare.Change(BulkPrepare.PHASE_SERIAL)
+                .apply("alter table " + table + " set unlogged")
+                .restore("alter table " + table + " set logged");
+    }
 
 }
@@ -69,9 +69,12 @@ public class PrintWriterRunContext implements RunContext {
     }
 
     private void writeReport(ReportLevel level, String format, PrintWriter wr, Object... args) {
-        wr.print(formatTime(new Date()));
-        wr.printf(format, args);
-        wr.println();
+        //parallel sessions report from several threads
+        synchronized (wr) {
+            wr.print(formatTime(new Date()));
+            wr.printf(format, args);
+            wr.println();
+        }
     }
 
     public void report(ReportLevel level, String format, Object... args) {
@@ -0,0 +1,38 @@
+package ch.ips.g2.applyalter;
+
+/**
+ * JMX interface of {@link ProgressTracker}: status of the running migration. Values that are not known
+ * (total of keyset migration, rates before the first batch) are negative.
+ *
+ * @version $Id$
+ */
+public interface ProgressMBean {
+
+    String getStatement();
+
+    long getTotalUnits();
+
+    long getProcessedUnits();
+
+    long getChangedRows();
+
+    long getBatches();
+
+    double getPercentDone();
+
+    double getUnitsPerSecond();
+
+    double getRowsPerSecond();
+
+    double getBatchesPerSecond();
+
+    long getElapsedSeconds();
+
+    long getEtaSeconds();
+
+    /**
+     * One-line summary, the same as the periodic report.
+     */
+    String getStatus();
+
+}
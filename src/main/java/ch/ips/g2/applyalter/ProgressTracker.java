@@ -0,0 +1,204 @@
+package ch.ips.g2.applyalter;
+
+import javax.management.ObjectName;
+
+/**
+ * Progress of a migration: processed units (IDs of the range, rows of the ID list), changed rows and batches,
+ * smoothed rates and estimated remaining time. Progress is reported through {@link RunContext} every
+ * {@link #REPORT_INTERVAL_MS} and it can be queried any time via JMX ({@link ProgressMBean}, name
+ * {@link #OBJECT_NAME}).
+ * <p/>
+ * Rates are measured over windows of at least {@link #WINDOW_MS} (batches of parallel sessions finish at nearly
+ * the same time, so per-batch rates would be useless) and smoothed by exponential moving average. They include
+ * all the waiting (throttle, lock waits), so the estimate is realistic. Thread safe.
+ *
+ * @version $Id$
+ */
+public class ProgressTracker implements ProgressMBean {
+    public static final String OBJECT_NAME = "ch.ips.g2.applyalter:type=Progress";
+    public static final long REPORT_INTERVAL_MS = 30000;
+    public static final long WINDOW_MS = 5000;
+    /**
+     * Weight of the last window in the smoothed rates.
+     */
+    public static final double SMOOTHING = 0.3;
+
+    private final String statement;
+    private final long totalUnits;
+    private final long start;
+    private long processedUnits;
+    private long changedRows;
+    private long batches;
+    private long lastReport;
+
+    private long windowStart;
+    private long windowUnits;
+    private long windowRows;
+    private long windowBatches;
+    private double unitsRate = -1;
+    private double rowsRate = -1;
+    private double batchesRate = -1;
+
+    private ObjectName registeredName;
+
+    /**
+     * Create tracker.
+     *
+     * @param statement  description of the statement
+     * @param totalUnits total units to process, negative if unknown
+     */
+    public ProgressTracker(String statement, long totalUnits) {
+        this.statement = statement;
+        this.totalUnits = totalUnits;
+        this.start = System.currentTimeMillis();
+        this.windowStart = start;
+        this.lastReport = start;
+    }
+
+    /**
+     * Create tracker and register it to JMX.
+     */
+    public static ProgressTracker start(RunContext ctx, String statement, long totalUnits) {
+        ProgressTracker progress = new ProgressTracker(statement, totalUnits);
+        progress.registeredName = JmxSupport.register(ctx, progress, OBJECT_NAME);
+        return progress;
+    }
+
+    /**
+     * Record finished batch; report progress if the report interval has elapsed.
+     *
+     * @param ctx   run context
+     * @param units processed units
+     * @param rows  changed rows
+     */
+    public void batchDone(RunContext ctx, long units, long rows) {
+        final String status;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            processedUnits += units;
+            changedRows += rows;
+            batches++;
+            windowUnits += units;
+            windowRows += rows;
+            windowBatches++;
+            final long windowMs = now - windowStart;
+            if (windowMs >= WINDOW_MS) {
+                unitsRate = smooth(unitsRate, windowUnits * 1000.0 / windowMs);
+                rowsRate = smooth(rowsRate, windowRows * 1000.0 / windowMs);
+                batchesRate = smooth(batchesRate, windowBatches * 1000.0 / windowMs);
+                windowStart = now;
+                windowUnits = 0;
+                windowRows = 0;
+                windowBatches = 0;
+            }
+            if (now - lastReport < REPORT_INTERVAL_MS)
+                return;
+            lastReport = now;
+            status = getStatus();
+        }
+        ctx.report(ReportLevel.STATEMENT_STEP, " progress: %s", status);
+    }
+
+    private static double smooth(double smoothed, double sample) {
+        return smoothed < 0 ? sample : SMOOTHING * sample + (1.0 - SMOOTHING) * smoothed;
+    }
+
+    /**
+     * Unregister from JMX and report the final rates.
+     */
+    public void finish(RunContext ctx) {
+        JmxSupport.unregister(registeredName);
+        registeredName = null;
+        final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        synchronized (this) {
+            ctx.report(ReportLevel.STATEMENT_STEP, " %d units, %d rows changed in %d batches, %s (%.0f rows/s)",
+                    processedUnits, changedRows, batches, formatDuration(elapsed / 1000),
+                    changedRows * 1000.0 / elapsed);
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public long getTotalUnits() {
+        return totalUnits;
+    }
+
+    public synchronized long getProcessedUnits() {
+        return processedUnits;
+    }
+
+    public synchronized long getChangedRows() {
+        return changedRows;
+    }
+
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+    public synchronized double getPercentDone() {
+        if (totalUnits <= 0)
+            return -1;
+        return Math.min(100.0, processedUnits * 100.0 / totalUnits);
+    }
+
+    /**
+     * Smoothed rate; before the first window is complete, the overall average.
+     */
+    public synchronized double getUnitsPerSecond() {
+        return unitsRate >= 0 ? unitsRate : average(processedUnits);
+    }
+
+    public synchronized double getRowsPerSecond() {
+        return rowsRate >= 0 ? rowsRate : average(changedRows);
+    }
+
+    public synchronized double getBatchesPerSecond() {
+        return batchesRate >= 0 ? batchesRate : average(batches);
+    }
+
+    private double average(long count) {
+        final long elapsed = System.currentTimeMillis() - start;
+        return (batches == 0 || elapsed <= 0) ? -1 : count * 1000.0 / elapsed;
+    }
+
+    public long getElapsedSeconds() {
+        return (System.currentTimeMillis() - start) / 1000;
+    }
+
+    public synchronized long getEtaSeconds() {
+        final double rate = getUnitsPerSecond();
+        if (totalUnits < 0 || rate <= 0)
+            return -1;
+        return (long) (Math.max(0, totalUnits - processedUnits) / rate);
+    }
+
+    public synchronized String getStatus() {
+        StringBuilder b = new StringBuilder();
+        b.append(processedUnits);
+        if (totalUnits >= 0)
+            b.append(String.format(" of %d (%.1f%%)", totalUnits, getPercentDone()));
+        b.append(String.format(", %d rows changed in %d batches, %.0f rows/s, %.2f batches/s, elapsed %s",
+                changedRows, batches, Math.max(0, getRowsPerSecond()), Math.max(0, getBatchesPerSecond()),
+                formatDuration(getElapsedSeconds())));
+        final long eta = getEtaSeconds();
+        if (eta >= 0)
+            b.append(", ETA ").append(formatDuration(eta));
+        return b.toString();
+    }
+
+    /**
+     * Format duration as <code>1h02m03s</code>.
+     */
+    static String formatDuration(long seconds) {
+        if (seconds < 60)
+            return seconds + "s";
+        if (seconds < 3600)
+            return String.format("%dm%02ds", seconds / 60, seconds % 60);
+        return String.format("%dh%02dm%02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+}
@@ -0,0 +1,169 @@
+package ch.ips.g2.applyalter;
+
+import javax.management.ObjectName;
+
+/**
+ * Rate limiter of batch statements (migrations, CSV): token bucket for rows and another one for batches,
+ * checked after every committed batch (see {@link AbstractStatement#commitStep}). Batch larger than the bucket is
+ * allowed, the bucket just goes to debt and the next batch waits longer; average rate is therefore exact.
+ * <p/>
+ * The limits are adjustable at runtime via JMX ({@link ThrottleMBean}, name {@link #OBJECT_NAME}), so the running
+ * migration can be slowed down or sped up. Throttle is thread safe: parallel sessions share one instance.
+ * <p/>
+ * Optional {@link LagProbe} pauses the statement while the replicas are behind.
+ *
+ * @version $Id$
+ */
+public class Throttle implements ThrottleMBean {
+    public static final String OBJECT_NAME = "ch.ips.g2.applyalter:type=Throttle";
+
+    /**
+     * Token bucket; capacity is one second of the rate.
+     */
+    private static class Bucket {
+        private double tokens;
+        private long lastNanos;
+
+        Bucket(long now) {
+            this.lastNanos = now;
+        }
+
+        /**
+         * Take the tokens.
+         *
+         * @return milliseconds to wait
+         */
+        long take(double rate, double amount, long now) {
+            if (rate <= 0) {
+                tokens = 0;
+                lastNanos = now;
+                return 0;
+            }
+            tokens = Math.min(rate, tokens + (now - lastNanos) * rate / 1e9);
+            lastNanos = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1000.0 / rate);
+        }
+    }
+
+    private final String statement;
+    private volatile double maxRowsPerSecond;
+    private volatile double maxBatchesPerSecond;
+    private final Bucket rowBucket;
+    private final Bucket batchBucket;
+    private long throttledMillis;
+    private ObjectName registeredName;
+    private LagProbe lagProbe;
+
+    /**
+     * Create throttle.
+     *
+     * @param statement           description of the statement (shown in JMX)
+     * @param maxRowsPerSecond    row limit, null or zero means unlimited
+     * @param maxBatchesPerSecond batch limit, null or zero means unlimited
+     */
+    public Throttle(String statement, Double maxRowsPerSecond, Double maxBatchesPerSecond) {
+        this.statement = statement;
+        this.maxRowsPerSecond = maxRowsPerSecond == null ? 0 : maxRowsPerSecond.doubleValue();
+        this.maxBatchesPerSecond = maxBatchesPerSecond == null ? 0 : maxBatchesPerSecond.doubleValue();
+        final long now = System.nanoTime();
+        this.rowBucket = new Bucket(now);
+        this.batchBucket = new Bucket(now);
+    }
+
+    /**
+     * Record finished batch and wait, if the rate is over the limits.
+     *
+     * @param rows number of rows processed by the batch
+     * @return milliseconds waited
+     */
+    public long acquire(long rows) {
+        final long waitMs;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            waitMs = Math.max(rowBucket.take(maxRowsPerSecond, rows, now),
+                    batchBucket.take(maxBatchesPerSecond, 1, now));
+            throttledMillis += waitMs;
+        }
+        if (waitMs > 0) {
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplyAlterException("interrupted while throttled", e);
+            }
+        }
+        return waitMs;
+    }
+
+    /**
+     * Record finished batch, wait for the rate limits and for the replicas.
+     *
+     * @param ctx  run context
+     * @param rows number of rows processed by the batch
+     * @return milliseconds waited
+     */
+    public long acquire(RunContext ctx, long rows) {
+        final long waitMs = acquire(rows);
+        return lagProbe == null ? waitMs : waitMs + lagProbe.await(ctx);
+    }
+
+    public LagProbe getLagProbe() {
+        return lagProbe;
+    }
+
+    public void setLagProbe(LagProbe lagProbe) {
+        this.lagProbe = lagProbe;
+    }
+
+    public String getStatement() {
+        return statement;
+    }
+
+    public double getMaxRowsPerSecond() {
+        return maxRowsPerSecond;
+    }
+
+    public void setMaxRowsPerSecond(double maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    public double getMaxBatchesPerSecond() {
+        return maxBatchesPerSecond;
+    }
+
+    public void setMaxBatchesPerSecond(double maxBatchesPerSecond) {
+        this.maxBatchesPerSecond = maxBatchesPerSecond;
+    }
+
+    public synchronized long getThrottledMillis() {
+        return throttledMillis;
+    }
+
+    //-----------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Register to the platform MBean server, replacing throttle of the previous statement.
+     */
+    public void register(RunContext ctx) {
+        registeredName = JmxSupport.register(ctx, this, OBJECT_NAME);
+    }
+
+    /**
+     * Unregister from JMX and report the total throttled time.
+     */
+    public void close(RunContext ctx) {
+        JmxSupport.unregister(registeredName);
+        registeredName = null;
+        final long throttled = getThrottledMillis();
+        if (throttled > 0)
+            ctx.report(ReportLevel.STATEMENT_STEP, " throttled for %d ms", throttled);
+        if (lagProbe != null) {
+            lagProbe.close();
+            if (lagProbe.getPausedMillis() > 0)
+                ctx.report(ReportLevel.STATEMENT_STEP, " paused for %d ms because of replication lag",
+                        lagProbe.getPausedMillis());
+        }
+    }
+
+}
@@ -0,0 +1,26 @@
+package ch.ips.g2.applyalter;
+
+/**
+ * JMX interface of {@link Throttle}: limits of the running statement can be changed by any JMX console
+ * (jconsole, ...). Zero or negative limit means "unlimited".
+ *
+ * @version $Id$
+ */
+public interface ThrottleMBean {
+
+    String getStatement();
+
+    double getMaxRowsPerSecond();
+
+    void setMaxRowsPerSecond(double maxRowsPerSecond);
+
+    double getMaxBatchesPerSecond();
+
+    void setMaxBatchesPerSecond(double maxBatchesPerSecond);
+
+    /**
+     * Total time spent waiting for the throttle.
+     */
+    long getThrottledMillis();
+
+}
@@ -0,0 +1,54 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+@Test
+public class AdaptiveStepTest
+{
+
+  public void testFixed()
+  {
+    AdaptiveStep step = AdaptiveStep.fixed( 20000 );
+    Assert.assertEquals( step.update( 20000, 1 ), 20000 );
+    Assert.assertEquals( step.update( 20000, 100000 ), 20000 );
+  }
+
+  public void testConvergesToTarget()
+  {
+    //10 units per ms, target 1000 ms --> 10000
+    AdaptiveStep step = new AdaptiveStep( 1000, 1000, 1, 1000000 );
+    for ( int i = 0; i < 30; i++ )
+      step.update( step.getStep(), step.getStep() / 10 );
+    Assert.assertEquals( step.getStep(), 10000 );
+  }
+
+  public void testLimitedChange()
+  {
+    AdaptiveStep step = new AdaptiveStep( 1000, 1000, 1, 1000000 );
+    //extremely fast batch: only doubled
+    Assert.assertEquals( step.update( 1000, 0 ), 2000 );
+    //extremely slow batch: only halved
+    step = new AdaptiveStep( 1000, 1000, 1, 1000000 );
+    Assert.assertEquals( step.update( 1000, 1000000 ), 500 );
+  }
+
+  public void testBounds()
+  {
+    AdaptiveStep step = new AdaptiveStep( 1000, 1000, 800, 1500 );
+    Assert.assertEquals( step.update( 1000, 0 ), 1500 );
+    step = new AdaptiveStep( 1000, 1000, 800, 1500 );
+    Assert.assertEquals( step.update( 1, 1000000 ), 800 );
+  }
+
+  public void testRound()
+  {
+    Assert.assertEquals( AdaptiveStep.roundStep( 0 ), 1 );
+    Assert.assertEquals( AdaptiveStep.roundStep( 57 ), 57 );
+    Assert.assertEquals( AdaptiveStep.roundStep( 12345 ), 12000 );
+    Assert.assertEquals( AdaptiveStep.roundStep( 12567 ), 13000 );
+  }
+
+}
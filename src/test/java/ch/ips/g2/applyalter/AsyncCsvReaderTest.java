@@ -0,0 +1,51 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+
+/**
+ */
+@Test
+public class AsyncCsvReaderTest
+{
+
+  public void testRowsInOrder()
+    throws Exception
+  {
+    StringBuilder csv = new StringBuilder( "id,name\n" );
+    for ( int i = 0; i < 1000; i++ )
+      csv.append( i ).append( ",\"row " ).append( i ).append( "\"\n" );
+
+    AsyncCsvReader rdr = new AsyncCsvReader( new StringReader( csv.toString() ), "test" );
+    rdr.start();
+    try
+    {
+      Assert.assertEquals( rdr.readNext(), new String[]{ "id", "name" } );
+      for ( int i = 0; i < 1000; i++ )
+        Assert.assertEquals( rdr.readNext(), new String[]{ String.valueOf( i ), "row " + i } );
+      Assert.assertNull( rdr.readNext() );
+      Assert.assertNull( rdr.readNext() );
+    }
+    finally
+    {
+      rdr.close();
+    }
+  }
+
+  public void testCloseEarly()
+    throws Exception
+  {
+    StringBuilder csv = new StringBuilder();
+    for ( int i = 0; i < 100000; i++ )
+      csv.append( i ).append( '\n' );
+
+    AsyncCsvReader rdr = new AsyncCsvReader( new StringReader( csv.toString() ), "test" );
+    rdr.start();
+    Assert.assertEquals( rdr.readNext(), new String[]{ "0" } );
+    //parser is blocked on the full queue: must not hang
+    rdr.close();
+  }
+
+}
@@ -0,0 +1,105 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Date;
+import java.sql.Timestamp;
+
+/**
+ */
+@Test
+public class BinaryDatafileTest
+{
+
+  private static final BinaryDatafile.Type[] TYPES = {
+      BinaryDatafile.Type.INT, BinaryDatafile.Type.VARCHAR, BinaryDatafile.Type.DECIMAL,
+      BinaryDatafile.Type.BOOLEAN, BinaryDatafile.Type.BINARY, BinaryDatafile.Type.DATE,
+      BinaryDatafile.Type.TIMESTAMP, BinaryDatafile.Type.BIGINT
+  };
+
+  private static BinaryDatafile.Reader convert( String csv )
+      throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CsvToBinary.convert( new StringReader( csv ), "test.csv", TYPES, out );
+    return new BinaryDatafile.Reader( ByteBuffer.wrap( out.toByteArray() ), "test.bin" );
+  }
+
+  public void testRoundTrip()
+      throws Exception
+  {
+    BinaryDatafile.Reader rdr = convert( "id,name,amount,flag,data,day,ts,big\n"
+        + "1,\"žluťoučký, kůň\",-12.340,t,0xCAFE,2020-02-29,2020-02-29T10:11:12.5,9000000000\n"
+        + "2,,,,,,,\n" );
+    Assert.assertEquals( rdr.getColumnNames(), new String[]{ "id", "name", "amount", "flag", "data", "day", "ts", "big" } );
+    Assert.assertEquals( rdr.getTypes(), TYPES );
+
+    Assert.assertTrue( rdr.hasNext() );
+    Object[] row = rdr.readRow();
+    Assert.assertEquals( row[0], 1 );
+    Assert.assertEquals( row[1], "žluťoučký, kůň" );
+    Assert.assertEquals( row[2], new BigDecimal( "-12.340" ) );
+    Assert.assertEquals( row[3], Boolean.TRUE );
+    Assert.assertEquals( (byte[]) row[4], new byte[]{ (byte) 0xCA, (byte) 0xFE } );
+    Assert.assertEquals( row[5], Date.valueOf( "2020-02-29" ) );
+    Assert.assertEquals( row[6], Timestamp.valueOf( "2020-02-29 10:11:12.5" ) );
+    Assert.assertEquals( row[7], 9000000000L );
+
+    //empty string is not NULL, other empty values are
+    row = rdr.readRow();
+    Assert.assertEquals( row, new Object[]{ 2, "", null, null, null, null, null, null } );
+    Assert.assertFalse( rdr.hasNext() );
+    Assert.assertEquals( rdr.getRows(), 2 );
+  }
+
+  public void testManyColumnsNullBitmap()
+      throws Exception
+  {
+    BinaryDatafile.Type[] types = new BinaryDatafile.Type[10];
+    String[] names = new String[10];
+    Object[] values = new Object[10];
+    for ( int i = 0; i < 10; i++ )
+    {
+      types[i] = BinaryDatafile.Type.SMALLINT;
+      names[i] = "c" + i;
+      values[i] = ( i % 3 == 0 ) ? null : Short.valueOf( (short) i );
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryDatafile.Writer writer = new BinaryDatafile.Writer( out, names, types );
+    writer.writeRow( values );
+    writer.close();
+    BinaryDatafile.Reader rdr = new BinaryDatafile.Reader( ByteBuffer.wrap( out.toByteArray() ), "test.bin" );
+    Assert.assertEquals( rdr.readRow(), values );
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testInvalidValue()
+      throws Exception
+  {
+    convert( "id,name,amount,flag,data,day,ts,big\nx,a,1,t,00,2020-01-01,2020-01-01,1\n" );
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testTruncated()
+      throws Exception
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CsvToBinary.convert( new StringReader( "id,name,amount,flag,data,day,ts,big\n1,a,1,t,00,2020-01-01,2020-01-01,1\n" ),
+        "test.csv", TYPES, out );
+    byte[] data = out.toByteArray();
+    ByteBuffer truncated = ByteBuffer.wrap( data, 0, data.length - 3 ).slice();
+    new BinaryDatafile.Reader( truncated, "test.bin" ).readRow();
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testNotBinary()
+  {
+    new BinaryDatafile.Reader( ByteBuffer.wrap( "id,name\n".getBytes() ), "test.csv" );
+  }
+
+}
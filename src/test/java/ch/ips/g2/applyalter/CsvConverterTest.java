@@ -0,0 +1,59 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ */
+@Test
+public class CsvConverterTest
+{
+
+  public void testHex()
+  {
+    Assert.assertEquals( CsvConverter.parseHex( "0F12aB" ), new byte[]{ 15, 0x12, (byte) 0xab } );
+    Assert.assertEquals( CsvConverter.parseHex( "0x0F12" ), new byte[]{ 15, 0x12 } );
+    Assert.assertEquals( CsvConverter.parseHex( "\\x0F12" ), new byte[]{ 15, 0x12 } );
+    Assert.assertEquals( CsvConverter.parseHex( "" ), new byte[0] );
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testHexInvalid()
+  {
+    CsvConverter.parseHex( "0G" );
+  }
+
+  public void testBoolean()
+  {
+    Assert.assertTrue( CsvConverter.parseBoolean( "1" ) );
+    Assert.assertTrue( CsvConverter.parseBoolean( "TRUE" ) );
+    Assert.assertTrue( CsvConverter.parseBoolean( "y" ) );
+    Assert.assertFalse( CsvConverter.parseBoolean( "f" ) );
+    Assert.assertFalse( CsvConverter.parseBoolean( "no" ) );
+  }
+
+  public void testTimestamp()
+  {
+    Assert.assertEquals( CsvConverter.parseTimestamp( "2010-03-04T05:06:07" ),
+        Timestamp.valueOf( "2010-03-04 05:06:07" ) );
+    Assert.assertEquals( CsvConverter.parseTimestamp( "2010-03-04" ), Timestamp.valueOf( "2010-03-04 00:00:00" ) );
+  }
+
+  public void testUnsupported()
+  {
+    Assert.assertNull( CsvConverter.forType( Types.ARRAY ) );
+    Assert.assertNotNull( CsvConverter.forType( Types.NUMERIC ) );
+  }
+
+  public void testCopyText()
+  {
+    Assert.assertEquals( CsvConverter.forType( Types.VARCHAR ).copyText( "" ), "" );
+    Assert.assertNull( CsvConverter.forType( Types.INTEGER ).copyText( "" ) );
+    Assert.assertEquals( CsvConverter.forType( Types.INTEGER ).copyText( "42" ), "42" );
+    Assert.assertEquals( CsvConverter.forType( Types.VARBINARY ).copyText( "0x0f12" ), "\\x0F12" );
+  }
+
+}
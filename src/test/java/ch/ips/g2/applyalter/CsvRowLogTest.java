@@ -0,0 +1,39 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+@Test
+public class CsvRowLogTest
+{
+
+  public void testKeyRoundTrip()
+  {
+    String[] row = { "a", "1", "", "x,y" };
+    String key = CsvRowLog.makeKey( row, new int[]{ 3, 2, 1 } );
+    Assert.assertEquals( CsvRowLog.splitKey( key, 3 ), new String[]{ "x,y", "", "1" } );
+    Assert.assertEquals( CsvRowLog.splitKey( CsvRowLog.makeKey( row, new int[]{ 0 } ), 1 ), new String[]{ "a" } );
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testKeyTooLong()
+  {
+    StringBuilder b = new StringBuilder();
+    for ( int i = 0; i <= CsvRowLog.MAX_KEY_LENGTH; i++ )
+      b.append( 'x' );
+    CsvRowLog.makeKey( new String[]{ b.toString() }, new int[]{ 0 } );
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testKeyTooLongInBytes()
+  {
+    //fits in characters, not in bytes
+    StringBuilder b = new StringBuilder();
+    for ( int i = 0; i < CsvRowLog.MAX_KEY_LENGTH / 2 + 1; i++ )
+      b.append( 'ž' );
+    CsvRowLog.makeKey( new String[]{ b.toString() }, new int[]{ 0 } );
+  }
+
+}
@@ -0,0 +1,98 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ */
+@Test
+public class DatafileMapTest
+{
+
+  private static final byte[] DATA = "id,name\n1,abc\n".getBytes();
+
+  private static byte[] gzip( byte[] data )
+      throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gz = new GZIPOutputStream( out );
+    gz.write( data );
+    gz.close();
+    return out.toByteArray();
+  }
+
+  private static DatafileMap makeMap( final Map<String, byte[]> files )
+  {
+    return new DatafileMap( new AlterLoader.AlterSource()
+    {
+      public InputStream openScript()
+      {
+        throw new UnsupportedOperationException();
+      }
+
+      public InputStream openDataFile( String filename )
+      {
+        return new ByteArrayInputStream( files.get( filename ) );
+      }
+
+      public String getDataFileKey( String filename )
+      {
+        return null;
+      }
+    }, files.keySet() );
+  }
+
+  public void testGzip()
+      throws IOException
+  {
+    Map<String, byte[]> files = new HashMap<String, byte[]>();
+    files.put( "data.csv.gz", gzip( DATA ) );
+    files.put( "data.csv", DATA );
+    DatafileMap map = makeMap( files );
+
+    Assert.assertEquals( map.get( "data.csv.gz" ), DATA );
+    Assert.assertEquals( map.get( "data.csv" ), DATA );
+    Assert.assertEquals( IOUtils.toByteArray( map.openStream( "data.csv.gz" ) ), DATA );
+    ByteBuffer buffer = DatafileMap.map( map, "data.csv.gz" );
+    byte[] mapped = new byte[buffer.remaining()];
+    buffer.get( mapped );
+    Assert.assertEquals( mapped, DATA );
+
+    //plain map contains the files as stored
+    Assert.assertEquals( IOUtils.toByteArray( DatafileMap.openStream( files, "data.csv.gz" ) ), DATA );
+  }
+
+  public void testDecompressedKept()
+      throws IOException
+  {
+    Map<String, byte[]> files = new HashMap<String, byte[]>();
+    files.put( "lob.bin.gz", gzip( DATA ) );
+    DatafileMap map = makeMap( files );
+
+    byte[] first = map.get( "lob.bin.gz" );
+    Assert.assertSame( map.get( "lob.bin.gz" ), first );
+    map.releaseDecompressed();
+    Assert.assertNotSame( map.get( "lob.bin.gz" ), first );
+    Assert.assertEquals( map.get( "lob.bin.gz" ), DATA );
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testInvalidGzip()
+      throws IOException
+  {
+    Map<String, byte[]> files = new HashMap<String, byte[]>();
+    files.put( "data.csv.gz", DATA );
+    makeMap( files ).openStream( "data.csv.gz" );
+  }
+
+}
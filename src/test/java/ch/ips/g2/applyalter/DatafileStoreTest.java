@@ -0,0 +1,139 @@
+package ch.ips.g2.applyalter;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ */
+@Test
+public class DatafileStoreTest
+{
+
+  /**
+   * Source counting the reads; file "a" and "b" have the same content.
+   */
+  private static class CountingSource implements AlterLoader.AlterSource
+  {
+    final Map<String, byte[]> files = new HashMap<String, byte[]>();
+    int reads;
+
+    public InputStream openScript()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    public InputStream openDataFile( String filename )
+    {
+      reads++;
+      return new ByteArrayInputStream( files.get( filename ) );
+    }
+
+    public String getDataFileKey( String filename )
+    {
+      return "test:" + filename;
+    }
+  }
+
+  private static byte[] bytes( int size, int value )
+  {
+    byte[] data = new byte[size];
+    Arrays.fill( data, (byte) value );
+    return data;
+  }
+
+  public void testSharedContent()
+      throws Exception
+  {
+    CountingSource source = new CountingSource();
+    source.files.put( "a", bytes( 100, 1 ) );
+    source.files.put( "b", bytes( 100, 1 ) );
+    DatafileStore store = new DatafileStore( 1000 );
+
+    byte[] a = store.get( source, "a" );
+    Assert.assertSame( store.get( source, "a" ), a );
+    Assert.assertSame( store.get( source, "b" ), a );
+    Assert.assertEquals( source.reads, 2 );
+    Assert.assertEquals( store.getUsed(), 100 );
+  }
+
+  public void testLruEviction()
+      throws Exception
+  {
+    CountingSource source = new CountingSource();
+    for ( int i = 0; i < 5; i++ )
+      source.files.put( "f" + i, bytes( 250, i ) );
+    DatafileStore store = new DatafileStore( 1000 );
+
+    store.get( source, "f0" );
+    store.get( source, "f1" );
+    store.get( source, "f2" );
+    store.get( source, "f3" );
+    //f0 is the most recently used now, f1 is evicted
+    store.get( source, "f0" );
+    store.get( source, "f4" );
+    Assert.assertEquals( store.getUsed(), 1000 );
+    Assert.assertEquals( source.reads, 5 );
+    store.get( source, "f0" );
+    Assert.assertEquals( source.reads, 5 );
+    store.get( source, "f1" );
+    Assert.assertEquals( source.reads, 6 );
+  }
+
+  public void testTooBig()
+      throws Exception
+  {
+    CountingSource source = new CountingSource();
+    source.files.put( "big", bytes( 300, 1 ) );
+    DatafileStore store = new DatafileStore( 1000 );
+    Assert.assertNull( store.get( source, "big" ) );
+    Assert.assertNull( store.get( source, "big" ) );
+    Assert.assertEquals( source.reads, 1 );
+    Assert.assertEquals( store.getUsed(), 0 );
+  }
+
+  public void testTooBigHashedOnce()
+      throws Exception
+  {
+    CountingSource source = new CountingSource();
+    source.files.put( "big", bytes( 300, 1 ) );
+    DatafileStore store = new DatafileStore( 1000 );
+    MessageDigest hash = MessageDigest.getInstance( "SHA-1" );
+    Assert.assertTrue( store.update( source, "big", hash ) );
+    Assert.assertEquals( hash.digest(), MessageDigest.getInstance( "SHA-1" ).digest( bytes( 300, 1 ) ) );
+    //known to be too big: not read again just to find out
+    Assert.assertNull( store.get( source, "big" ) );
+    Assert.assertEquals( source.reads, 1 );
+  }
+
+  public void testChangedFile()
+      throws Exception
+  {
+    File dir = File.createTempFile( "applyalter", ".dir" );
+    Assert.assertTrue( dir.delete() && dir.mkdir() );
+    File data = new File( dir, "data.csv" );
+    try
+    {
+      FileUtils.writeByteArrayToFile( data, bytes( 10, 1 ) );
+      AlterLoader.FileSource source = new AlterLoader.FileSource( new File( dir, "alter.xml" ) );
+      DatafileStore store = new DatafileStore( 1000 );
+      Assert.assertEquals( store.get( source, "data.csv" ), bytes( 10, 1 ) );
+
+      FileUtils.writeByteArrayToFile( data, bytes( 20, 2 ) );
+      Assert.assertEquals( store.get( source, "data.csv" ), bytes( 20, 2 ) );
+    }
+    finally
+    {
+      FileUtils.deleteDirectory( dir );
+    }
+  }
+
+}
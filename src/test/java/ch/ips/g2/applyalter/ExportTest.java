@@ -0,0 +1,67 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+/**
+ */
+@Test
+public class ExportTest
+{
+
+  public void testCsvRowReadBack()
+      throws Exception
+  {
+    String[] row = { "a \"quoted\", value", "", "line\nbreak" };
+    StringWriter out = new StringWriter();
+    Export.writeCsvRow( out, row );
+    AsyncCsvReader rdr = new AsyncCsvReader( new StringReader( out.toString() ), "test" );
+    rdr.start();
+    try
+    {
+      Assert.assertEquals( rdr.readNext(), row );
+      Assert.assertNull( rdr.readNext() );
+    }
+    finally
+    {
+      rdr.close();
+    }
+  }
+
+  public void testCsvNull()
+      throws Exception
+  {
+    StringWriter out = new StringWriter();
+    Export.writeCsvRow( out, new String[]{ null, "", null } );
+    Assert.assertEquals( out.toString(), ",\"\",\n" );
+  }
+
+  public void testFormatParse()
+  {
+    Object[][] values = {
+        { BinaryDatafile.Type.DECIMAL, new BigDecimal( "1E+3" ), "1000" },
+        { BinaryDatafile.Type.BINARY, new byte[]{ 1, (byte) 0xff }, "01ff" },
+        { BinaryDatafile.Type.TIMESTAMP, Timestamp.valueOf( "2020-01-02 03:04:05.6" ), "2020-01-02 03:04:05.6" },
+        { BinaryDatafile.Type.BOOLEAN, Boolean.FALSE, "false" },
+    };
+    for ( Object[] v : values )
+    {
+      BinaryDatafile.Type type = (BinaryDatafile.Type) v[0];
+      String text = type.format( v[1] );
+      Assert.assertEquals( text.toLowerCase(), v[2] );
+      Object parsed = type.parse( text );
+      if ( parsed instanceof byte[] )
+        Assert.assertEquals( (byte[]) parsed, (byte[]) v[1] );
+      else if ( parsed instanceof BigDecimal )
+        Assert.assertEquals( ( (BigDecimal) parsed ).compareTo( (BigDecimal) v[1] ), 0 );
+      else
+        Assert.assertEquals( parsed, v[1] );
+    }
+  }
+
+}
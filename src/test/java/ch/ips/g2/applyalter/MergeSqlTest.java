@@ -0,0 +1,57 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ */
+@Test
+public class MergeSqlTest
+{
+  private static final List<String> COLUMNS = Arrays.asList( "id", "name" );
+
+  private static DbInstance standard()
+  {
+    return new DbInstance()
+    {
+      @Override
+      public String getUrl()
+      {
+        return null;
+      }
+
+      @Override
+      public String getEngine()
+      {
+        return "test";
+      }
+    };
+  }
+
+  public void testMerge()
+  {
+    Assert.assertEquals( standard().makeMergeSql( "t", "s_t", COLUMNS, Arrays.asList( "id" ) ),
+        "merge into t t using (select id, name from s_t) s on (t.id = s.id)"
+            + " when matched then update set name = s.name"
+            + " when not matched then insert (id, name) values (s.id, s.name)" );
+  }
+
+  public void testMergeOnlyKeys()
+  {
+    Assert.assertEquals( standard().makeMergeSql( "t", "s_t", COLUMNS, COLUMNS ),
+        "merge into t t using (select id, name from s_t) s on (t.id = s.id and t.name = s.name)"
+            + " when not matched then insert (id, name) values (s.id, s.name)" );
+  }
+
+  public void testOnConflict()
+  {
+    Assert.assertEquals( new PgInstance().makeMergeSql( "t", "s_t", COLUMNS, Arrays.asList( "id" ) ),
+        "insert into t (id, name) select id, name from s_t on conflict (id) do update set name = excluded.name" );
+    Assert.assertEquals( new PgInstance().makeMergeSql( "t", "s_t", COLUMNS, COLUMNS ),
+        "insert into t (id, name) select id, name from s_t on conflict (id, name) do nothing" );
+  }
+
+}
@@ -0,0 +1,29 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+@Test
+public class MigrationIdRangeTest
+{
+
+  public void testRangeEnd()
+  {
+    Assert.assertEquals( MigrationIdRange.rangeEnd( 1, 10, 100 ), 10 );
+    Assert.assertEquals( MigrationIdRange.rangeEnd( 95, 10, 100 ), 100 );
+    Assert.assertEquals( MigrationIdRange.rangeEnd( Long.MAX_VALUE - 5, 10, Long.MAX_VALUE ), Long.MAX_VALUE );
+    Assert.assertEquals( MigrationIdRange.rangeEnd( Long.MIN_VALUE, 10, Long.MAX_VALUE ), Long.MIN_VALUE + 9 );
+  }
+
+  public void testChunkSize()
+  {
+    Assert.assertEquals( MigrationIdRange.chunkSize( 1, 100, 10 ), 10 );
+    //the width does not fit in long
+    long size = MigrationIdRange.chunkSize( Long.MIN_VALUE, Long.MAX_VALUE, 16 );
+    Assert.assertTrue( size > Long.MAX_VALUE / 16 && size < Long.MAX_VALUE / 4, String.valueOf( size ) );
+    Assert.assertEquals( MigrationIdRange.chunkSize( Long.MIN_VALUE, Long.MAX_VALUE, 1 ), Long.MAX_VALUE );
+  }
+
+}
@@ -0,0 +1,49 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.sql.Types;
+
+/**
+ */
+@Test
+public class MultiRowInsertTest
+{
+
+  private static CsvConverter[] converters( int count )
+  {
+    CsvConverter[] result = new CsvConverter[count];
+    for ( int i = 0; i < count; i++ )
+      result[i] = CsvConverter.forType( Types.VARCHAR );
+    return result;
+  }
+
+  public void testCountParameters()
+  {
+    Assert.assertEquals( MultiRowInsert.countParameters( "?, cast(? as int), '?'" ), 2 );
+    Assert.assertEquals( MultiRowInsert.countParameters( "t (a, b)" ), 0 );
+  }
+
+  public void testValues()
+  {
+    MultiRowInsert insert = new MultiRowInsert( new PgInstance(), null,
+        "INSERT INTO t (a, b)\n VALUES (?, ?)", converters( 2 ), new String[]{ "a", "b" }, 3 );
+    Assert.assertEquals( insert.getSql(), "insert into t (a, b) values (?, ?), (?, ?), (?, ?)" );
+  }
+
+  public void testWidthLimitedByParameters()
+  {
+    MultiRowInsert insert = new MultiRowInsert( new PgInstance(), null,
+        "insert into t values (?, ?, ?)", converters( 3 ), new String[]{ "a", "b", "c" }, 100000 );
+    Assert.assertEquals( insert.getWidth(), 32767 / 3 );
+  }
+
+  @Test(expectedExceptions = ApplyAlterException.class)
+  public void testNotSimpleInsert()
+  {
+    new MultiRowInsert( new PgInstance(), null, "update t set a = ? where b = ?", converters( 2 ),
+        new String[]{ "a", "b" }, 10 );
+  }
+
+}
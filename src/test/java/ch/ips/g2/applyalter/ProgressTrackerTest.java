@@ -0,0 +1,34 @@
+package ch.ips.g2.applyalter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ */
+@Test
+public class ProgressTrackerTest
+{
+
+  public void testFormatDuration()
+  {
+    Assert.assertEquals( ProgressTracker.formatDuration( 7 ), "7s" );
+    Assert.assertEquals( ProgressTracker.formatDuration( 125 ), "2m05s" );
+    Assert.assertEquals( ProgressTracker.formatDuration( 3723 ), "1h02m03s" );
+  }
+
+  public void testUnknownBeforeFirstBatch()
+  {
+    ProgressTracker progress = new ProgressTracker( "test", 1000 );
+    Assert.assertEquals( progress.getPercentDone(), 0.0 );
+    Assert.assertEquals( progress.getEtaSeconds(), -1L );
+    Assert.assertTrue( progress.getRowsPerSecond() < 0 );
+  }
+
+  public void testUnknownTotal()
+  {
+    ProgressTracker progress = new ProgressTracker( "test", -1 );
+    Assert.assertEquals( progress.getPercentDone(), -1.0 );
+    Assert.assertEquals( progress.getEtaSeconds(), -1L );
+  }
+
+}